@@ -53,9 +53,9 @@ public class AlarmBroadcastReceiver extends BroadcastReceiver {
                 ClipData old_clip = clipboard.getPrimaryClip();
                 if (old_clip != null) {
                     String old_data = old_clip.getItemAt(0).getText().toString();
-                    // we don't want to kill the clipboard unless the contents match the 6-digit
-                    // string pattern as used with the secret codes
-                    if (old_data.matches("^\\d\\d\\d\\d\\d\\d$")) {
+                    // we don't want to kill the clipboard unless the contents match the 6 to 8
+                    // digit string pattern as used with the secret codes
+                    if (old_data.matches("^\\d{6,8}$")) {
                         clipboard.setPrimaryClip(blank_clip);
                         Notify.Short(context, R.string.clipboard_cleared);
                     }
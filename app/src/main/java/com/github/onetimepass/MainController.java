@@ -16,16 +16,23 @@ package com.github.onetimepass;
 */
 
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.view.View;
+import android.widget.EditText;
+
+import androidx.appcompat.app.AlertDialog;
 
 import com.github.onetimepass.core.Notify;
 import com.github.onetimepass.core.Storage;
+import com.github.onetimepass.core.SupportBar;
 import com.github.onetimepass.core.control.ControlAction;
 import com.github.onetimepass.core.control.Controller;
+import com.github.onetimepass.core.vault.VaultBackups;
 import com.github.onetimepass.screens.AboutChangesScreen;
 import com.github.onetimepass.screens.AccountEditScreen;
 import com.github.onetimepass.screens.AccountInfoScreen;
@@ -37,6 +44,10 @@ import com.github.onetimepass.screens.ImportScreen;
 import com.github.onetimepass.screens.SetLockScreen;
 import com.github.onetimepass.screens.UnLockScreen;
 
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.List;
+
 /**
  * Concrete implementation of Controller class. The "C" in MVC.
  */
@@ -155,15 +166,26 @@ public class MainController extends Controller
                     public void performAction(final Context context, final String[] data) {
                         Notify.Short(context,R.string.quit_message);
                         clearAuthCache();
-                        getStorage().Close();
-                        onExitCleanup();
-                        new Handler(Looper.getMainLooper()).postDelayed(new Runnable() {
+                        final Runnable exit = new Runnable() {
                             @Override
                             public void run() {
                                 Notify.Debug();
                                 System.exit(0);
                             }
-                        },500);
+                        };
+                        // exit once the vaults are saved and closed
+                        Storage.CloseAll(context, new Storage.Operation() {
+                            @Override
+                            public void onStorageSuccess(Context context, Storage instance) {
+                                new Handler(Looper.getMainLooper()).postDelayed(exit,500);
+                            }
+
+                            @Override
+                            public void onStorageFailure() {
+                                new Handler(Looper.getMainLooper()).postDelayed(exit,500);
+                            }
+                        });
+                        onExitCleanup();
                         finish();
                     }
                 }
@@ -208,10 +230,10 @@ public class MainController extends Controller
 
                     @Override
                     public void performAction(Context context, String[] data) {
-                        getStorage().Close();
+                        Storage.PerformOperation(getSelf(), Storage.Op.CLOSE, null);
                         Storage.PerformOperation(
                                 getSelf(),
-                                "open",
+                                Storage.Op.OPEN,
                                 data[0],
                                 new Storage.Operation() {
                                     @Override
@@ -230,5 +252,154 @@ public class MainController extends Controller
                     }
                 }
         );
+
+        /**
+         * "switch_vault" - switch to the vault named in data[0], or pick one
+         * (or name a new one) when none is given
+         */
+        registerControlAction(
+                new ControlAction() {
+                    @Override
+                    public String getTag() {
+                        return "switch_vault";
+                    }
+
+                    @Override
+                    public boolean needsToBeAlive() { return true; }
+
+                    @Override
+                    public void performAction(Context context, String[] data) {
+                        Notify.Debug();
+                        if (data != null && data.length > 0)
+                            switchVault(data[0]);
+                        else
+                            showVaultChooser();
+                    }
+                }
+        );
+
+        /**
+         * "restore_backup" - pick a backup of the active vault and restore it
+         */
+        registerControlAction(
+                new ControlAction() {
+                    @Override
+                    public String getTag() {
+                        return "restore_backup";
+                    }
+
+                    @Override
+                    public boolean needsToBeAlive() { return true; }
+
+                    @Override
+                    public void performAction(Context context, String[] data) {
+                        Notify.Debug();
+                        showBackupChooser();
+                    }
+                }
+        );
     } // end initControlActions
+
+    private void switchVault(String name) {
+        Notify.Debug(name);
+        if (!Storage.IsValidVaultName(name)) {
+            Notify.Short(this,R.string.error_vault_name);
+            return;
+        }
+        Storage.SelectVault(this, name);
+        proceedToDefaultFragment();
+    }
+
+    private void showVaultChooser() {
+        final List<String> names = Storage.GetVaultNames(this);
+        String active = getStorage().GetName();
+        if (!names.contains(active))
+            names.add(active); // not written yet
+        String[] items = names.toArray(new String[names.size() + 1]);
+        items[names.size()] = getString(R.string.new_vault);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.switch_vault)
+                .setSingleChoiceItems(items, names.indexOf(active), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        dialog.dismiss();
+                        if (which < names.size())
+                            switchVault(names.get(which));
+                        else
+                            showNewVaultPrompt();
+                    }
+                })
+                .setNegativeButton(R.string.cancel, null)
+                .show();
+    }
+
+    private void showNewVaultPrompt() {
+        final EditText input = new EditText(this);
+        input.setSingleLine(true);
+        input.setHint(R.string.vault_name);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.new_vault)
+                .setView(input)
+                .setPositiveButton(R.string.add, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        switchVault(input.getText().toString().trim());
+                    }
+                })
+                .setNegativeButton(R.string.cancel, null)
+                .show();
+    }
+
+    private void showBackupChooser() {
+        final List<VaultBackups.Generation> backups = getStorage().GetBackups();
+        if (backups.isEmpty()) {
+            Notify.Short(this,R.string.error_no_backups);
+            return;
+        }
+        final String[] items = new String[backups.size()];
+        DateFormat format = DateFormat.getDateTimeInstance();
+        for (int i = 0; i < items.length; i++) {
+            items[i] = format.format(new Date(backups.get(i).time));
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.restore_backup)
+                .setItems(items, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, final int which) {
+                        dialog.dismiss();
+                        SupportBar.getInstance().ShowYesNoBox(R.string.restore_backup, R.string.restore_backup_prompt,
+                                new View.OnClickListener() {
+                                    @Override
+                                    public void onClick(View v) {
+                                        restoreBackup(backups.get(which));
+                                    }
+                                },
+                                null,
+                                items[which]);
+                    }
+                })
+                .setNegativeButton(R.string.cancel, null)
+                .show();
+    }
+
+    private void restoreBackup(VaultBackups.Generation generation) {
+        Notify.Debug();
+        Storage.PerformOperation(
+                getSelf(),
+                Storage.Op.RESTORE,
+                generation.file.getPath(),
+                new Storage.Operation() {
+                    @Override
+                    public void onStorageSuccess(Context context, Storage instance) {
+                        Notify.Debug();
+                        proceedToDefaultFragment();
+                    }
+                    @Override
+                    public void onStorageFailure() {
+                        Notify.Long(getSelf(),R.string.error_storage_restore);
+                        proceedToDefaultFragment();
+                    }
+                }
+        );
+    }
 }
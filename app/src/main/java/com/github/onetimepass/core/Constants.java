@@ -48,6 +48,23 @@ public class Constants {
      * The constant IDLE_INTERVAL.
      */
     public static final long IDLE_INTERVAL = (1 * 1000); // 1 second
+    /**
+     * The constant SAVE_DELAY, how long deferred saves wait for more changes.
+     */
+    public static final long SAVE_DELAY = 750; // 0.75 seconds
+    /**
+     * The constant HOTP_CLIPBOARD_DELAY, how long a copied counter code stays
+     * on the clipboard (time-based codes stay until their step ends).
+     */
+    public static final long HOTP_CLIPBOARD_DELAY = (30 * 1000); // 30 seconds
+    /**
+     * The constant BACKUP_GENERATIONS, how many backups of the vault are kept.
+     */
+    public static final int BACKUP_GENERATIONS = 5;
+    /**
+     * The constant MAX_OPEN_VAULTS, how many vaults stay open at once.
+     */
+    public static final int MAX_OPEN_VAULTS = 3;
 
     /**
      * The constant REQ_PERM_CAMERA.
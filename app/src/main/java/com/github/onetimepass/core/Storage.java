@@ -19,24 +19,40 @@ import android.annotation.SuppressLint;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.Settings;
 import android.text.format.Time;
 
 import com.github.onetimepass.R;
 import com.github.onetimepass.core.account.AccountEntry;
 import com.github.onetimepass.core.control.Controller;
+import com.github.onetimepass.core.otp.OtpBatch;
+import com.github.onetimepass.core.otp.OtpCache;
+import com.github.onetimepass.core.otp.OtpSource;
+import com.github.onetimepass.core.vault.KdfParams;
+import com.github.onetimepass.core.vault.KeyCache;
+import com.github.onetimepass.core.vault.VaultBackups;
+import com.github.onetimepass.core.vault.VaultFile;
+import com.github.onetimepass.core.vault.VaultJournal;
+import com.github.onetimepass.core.vault.VaultReader;
+import com.github.onetimepass.core.vault.VaultWriter;
 import com.tozny.crypto.android.AesCbcWithIntegrity;
 
-import org.apache.commons.io.IOUtils;
-import org.json.JSONArray;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 
 /**
@@ -48,31 +64,265 @@ public class Storage {
     private File mInstancePath;
     private InputStream mInstanceStream;
     private Context mContext;
-    private ArrayList<AccountEntry> mAccounts = new ArrayList<AccountEntry>();
+    // copy on write, replaced as a whole by the mutators on the main thread
+    private volatile ArrayList<AccountEntry> mAccounts = new ArrayList<AccountEntry>();
     private AesCbcWithIntegrity.SecretKeys mPassKeys = null;
-    private String mPlainText = null;
+    private KdfParams mKdf = null;
+    private volatile Rekey mRekey = null;
+    // bumped on every change to the account list, compared against the
+    // version last written to tell whether there is anything to save
+    private volatile int mVersion = 0;
+    private volatile int mSavedVersion = 0;
+    private final VaultFile mVaultFile = new VaultFile();
+    private VaultJournal mJournal = null;
+    private VaultBackups mBackups = null;
+    private ExecutorService mCompactor = null;
+    private final AtomicBoolean mCompacting = new AtomicBoolean(false);
+    private volatile VaultWriter.Durability mDurability = VaultWriter.Durability.FULL;
+    private Handler mSaveHandler = null;
+    private final AtomicBoolean mSavePending = new AtomicBoolean(false);
+    private final AtomicBoolean mFlushQueued = new AtomicBoolean(false);
+    private final Runnable mDeferredSave = new Runnable() {
+        @Override
+        public void run() {
+            ScheduleFlush();
+        }
+    };
+    private final OtpCache mCodeCache = new OtpCache(new OtpCache.Sources() {
+        @Override
+        public List<? extends OtpSource> getSources() {
+            ArrayList<AccountEntry> accounts = mAccounts;
+            ArrayList<AccountEntry> sources = new ArrayList<AccountEntry>();
+            if (accounts == null)
+                return sources;
+            // only the secrets already in use, the others stay encrypted
+            // until shown and have their code generated then
+            for (AccountEntry ae : accounts) {
+                if (ae.getSecretHolder().isRead())
+                    sources.add(ae);
+            }
+            return sources;
+        }
+    });
+
+    /**
+     * The name of the default vault.
+     */
+    public static final String DEFAULT_VAULT = "secrets";
+    private static final String VAULT_SUFFIX = ".dat";
+    private static final Pattern VAULT_NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}");
 
-    // Singleton implementation
+    // Registry of the named vaults, least recently used first. Any number
+    // may be open, each with its own keys, so switching back to one does not
+    // derive and decrypt again; the least recently used are evicted.
     @SuppressLint("StaticFieldLeak")
-    private static Storage mInstance;
+    private static final LinkedHashMap<String,Storage> mVaults = new LinkedHashMap<String,Storage>(4, 0.75f, true);
+    private static volatile String mActiveVault = DEFAULT_VAULT;
+    private String mName = null;
     private boolean mIsMainStorageInstance = false;
+    // operations waiting or running on this vault, a busy vault is never
+    // evicted (an open, for one, shows it closed until it is done)
+    private final AtomicInteger mBusy = new AtomicInteger(0);
 
     /**
-     * Gets instance.
+     * Gets the active vault.
      *
      * @param context the context
      * @return the instance
      */
     public static Storage getInstance(Context context) {
-        if (mInstance == null) {
-            mInstance = new Storage(context);
-            mInstance.mIsMainStorageInstance = true;
+        return getInstance(context, mActiveVault);
+    }
+
+    /**
+     * Gets a named vault, which need not exist yet.
+     *
+     * @param context the context
+     * @param name    the name, see IsValidVaultName()
+     * @return the instance
+     */
+    public static synchronized Storage getInstance(Context context, String name) {
+        if (!IsValidVaultName(name))
+            throw new IllegalArgumentException("invalid vault name: "+name);
+        Storage vault = mVaults.get(name);
+        if (vault == null) {
+            vault = new Storage(context, name);
+            vault.mIsMainStorageInstance = true;
+            mVaults.put(name, vault);
+        }
+        return vault;
+    }
+
+    /**
+     * Gets a named vault and holds it, see Hold(). Done under the registry
+     * lock, so the vault cannot be evicted in between.
+     */
+    private static synchronized Storage HoldInstance(Context context, String name) {
+        Storage vault = getInstance(context, name);
+        vault.Hold();
+        return vault;
+    }
+
+    /**
+     * Hold the vault busy for an operation about to be submitted.
+     * StorageExecutor releases the hold once the operation ends.
+     */
+    void Hold() {
+        mBusy.incrementAndGet();
+    }
+
+    /**
+     * Release a hold taken with Hold().
+     */
+    void Release() {
+        mBusy.decrementAndGet();
+    }
+
+    /**
+     * Is the name usable for a vault? Letters, digits, dashes and
+     * underscores, up to 32 of them.
+     *
+     * @param name the name
+     * @return the boolean
+     */
+    public static boolean IsValidVaultName(String name) {
+        return name != null && VAULT_NAME.matcher(name).matches();
+    }
+
+    /**
+     * Gets the names of the vaults that exist, in alphabetical order.
+     *
+     * @param context the context
+     * @return the names
+     */
+    public static List<String> GetVaultNames(Context context) {
+        ArrayList<String> names = new ArrayList<String>();
+        File[] files = context.getDatabasePath(DEFAULT_VAULT + VAULT_SUFFIX).getParentFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.endsWith(VAULT_SUFFIX))
+                    continue;
+                name = name.substring(0, name.length() - VAULT_SUFFIX.length());
+                if (IsValidVaultName(name))
+                    names.add(name);
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Make a named vault the active one, returned by getInstance(Context)
+     * from now on. The vault active until now stays open, if it was, and
+     * is evicted once it becomes the least recently used of too many.
+     *
+     * @param context the context
+     * @param name    the name
+     * @return the vault
+     */
+    public static synchronized Storage SelectVault(Context context, String name) {
+        Notify.Debug(name);
+        Storage previous = mVaults.get(mActiveVault);
+        Storage vault = getInstance(context, name);
+        mActiveVault = name;
+        if (previous != null && previous != vault)
+            previous.mCodeCache.stop(); // only the active vault keeps its codes warm
+        if (vault.IsOpen())
+            vault.mCodeCache.start();
+        EvictVaults();
+        return vault;
+    }
+
+    /**
+     * Close every open vault on the storage thread, on lock and quit.
+     *
+     * @param context  the context
+     * @param callback the callback, may be null
+     * @return the task, null if refused
+     */
+    public static StorageExecutor.Task CloseAll(Context context, Operation callback) {
+        Notify.Debug();
+        return StorageExecutor.getInstance().submit(Op.CLOSE, context, HoldInstance(context, mActiveVault), new StorageExecutor.Work() {
+            @Override
+            public boolean run() {
+                ArrayList<Storage> vaults;
+                synchronized (Storage.class) {
+                    vaults = new ArrayList<Storage>(mVaults.values());
+                }
+                for (Storage vault : vaults) {
+                    if (vault.IsOpen())
+                        vault.Close();
+                }
+                return true;
+            }
+        }, callback);
+    }
+
+    /**
+     * Run the requested saves of every vault on the storage thread.
+     */
+    public static synchronized void FlushAll() {
+        for (Storage vault : mVaults.values()) {
+            if (vault.mSavePending.get())
+                vault.ScheduleFlush();
+        }
+    }
+
+    /**
+     * Lock the least recently used vaults beyond Constants.MAX_OPEN_VAULTS,
+     * and drop the vaults that are neither open nor active from memory. The
+     * active vault is pinned, and busy vaults are left for the next round.
+     */
+    private static synchronized void EvictVaults() {
+        int open = 0;
+        for (Storage vault : mVaults.values()) {
+            if (vault.IsOpen())
+                open++;
+        }
+        Iterator<Storage> vaults = mVaults.values().iterator();
+        while (vaults.hasNext()) {
+            Storage vault = vaults.next();
+            if (vault.IsActive() || vault.mBusy.get() > 0)
+                continue;
+            if (vault.IsOpen()) {
+                if (open <= Constants.MAX_OPEN_VAULTS)
+                    continue;
+                vault.ScheduleEvict();
+                open--;
+                continue;
+            }
+            vaults.remove();
         }
-        return mInstance;
     }
 
     /**
-     * Is default (primary) instance?
+     * Close the vault on the storage thread and drop it from the registry,
+     * unless it was made active again meanwhile.
+     */
+    private void ScheduleEvict() {
+        Hold();
+        StorageExecutor.getInstance().submit(Op.EVICT, mContext, this, new StorageExecutor.Work() {
+            @Override
+            public boolean run() {
+                if (IsActive() || mBusy.get() > 1)
+                    return false; // wanted again meanwhile
+                Notify.Debug("evicting vault: "+mName);
+                Close();
+                DropVault(Storage.this);
+                return true;
+            }
+        }, null);
+    }
+
+    private static synchronized void DropVault(Storage vault) {
+        if (!vault.IsOpen() && !vault.IsActive() && vault.mBusy.get() <= 1 && mVaults.get(vault.mName) == vault)
+            mVaults.remove(vault.mName);
+    }
+
+    /**
+     * Is default (primary) instance? True for the named vaults, false for
+     * the temporary instances reading imports.
      *
      * @return the boolean
      */
@@ -80,16 +330,36 @@ public class Storage {
         return mIsMainStorageInstance;
     }
 
+    /**
+     * Is this the active vault?
+     *
+     * @return the boolean
+     */
+    public boolean IsActive() {
+        return mIsMainStorageInstance && mName.equals(mActiveVault);
+    }
+
+    /**
+     * Gets the name of the vault, null for temporary instances.
+     *
+     * @return the name
+     */
+    public String GetName() {
+        return mName;
+    }
+
     // Constructors
     private Storage() {}
-    private Storage(Context context) {
+    private Storage(Context context, String name) {
         mIsMainStorageInstance = false;
         mContext = context;
-        mDefaultPath = context.getDatabasePath("secrets.dat");
-        mInstancePath = mDefaultPath;
+        mName = name;
+        mDefaultPath = context.getDatabasePath(DEFAULT_VAULT + VAULT_SUFFIX);
+        mInstancePath = context.getDatabasePath(name + VAULT_SUFFIX);
         mInstanceStream = null;
+        mJournal = new VaultJournal(new File(mInstancePath.getAbsolutePath()+".journal"));
+        mBackups = new VaultBackups(mInstancePath, Constants.BACKUP_GENERATIONS);
         mAccounts = new ArrayList<AccountEntry>();
-        mPlainText = null;
     }
     private Storage(Context context, File path) {
         mIsMainStorageInstance = false;
@@ -97,8 +367,9 @@ public class Storage {
         mDefaultPath = context.getDatabasePath("secrets.dat");
         mInstancePath = path;
         mInstanceStream = null;
+        // an import source: no journal or backups next to someone else's file
+        mJournal = null;
         mAccounts = new ArrayList<AccountEntry>();
-        mPlainText = null;
     }
     private Storage(Context context, InputStream stream) {
         mIsMainStorageInstance = false;
@@ -107,7 +378,6 @@ public class Storage {
         mInstancePath = null;
         mInstanceStream = stream;
         mAccounts = new ArrayList<AccountEntry>();
-        mPlainText = null;
     }
 
     private Controller getController() {
@@ -145,7 +415,7 @@ public class Storage {
      * @return the boolean
      */
     public boolean IsOpen() {
-        return mPassKeys != null && mPlainText != null;
+        return mPassKeys != null && mAccounts != null;
     }
 
     /**
@@ -160,30 +430,91 @@ public class Storage {
         return mAccounts;
     }
 
-    private AesCbcWithIntegrity.SecretKeys makePassKeys(String passphrase) {
+    /**
+     * Generate the codes of every account for one time step in a single
+     * pass. The codes are indexed by account position, entries without a
+     * usable secret get OtpBatch.INVALID.
+     *
+     * @param step the time step
+     * @return the codes
+     */
+    public int[] GenerateCodes(long step) {
         Notify.Debug();
+        ArrayList<AccountEntry> accounts = new ArrayList<AccountEntry>(GetAccounts());
+        return OtpBatch.Generate(accounts, step);
+    }
+
+    /**
+     * Gets the code cache. Prefetching runs while the storage is open.
+     *
+     * @return the code cache
+     */
+    public OtpCache GetCodeCache() {
+        return mCodeCache;
+    }
+
+    /**
+     * Keys derived with new parameters, waiting for the next save.
+     */
+    private static class Rekey {
+        final AesCbcWithIntegrity.SecretKeys from;
+        final AesCbcWithIntegrity.SecretKeys keys;
+        final KdfParams kdf;
+
+        Rekey(AesCbcWithIntegrity.SecretKeys from, AesCbcWithIntegrity.SecretKeys keys, KdfParams kdf) {
+            this.from = from;
+            this.keys = keys;
+            this.kdf = kdf;
+        }
+    }
+
+    private String makeSalt(String passphrase) {
+        if (!mIsMainStorageInstance)
+            return passphrase;
         ContentResolver cr = mContext.getApplicationContext().getContentResolver();
-        String salt = passphrase;
-        if (mIsMainStorageInstance)
-            salt = Settings.Secure.getString(cr, Settings.Secure.ANDROID_ID);
+        return Settings.Secure.getString(cr, Settings.Secure.ANDROID_ID);
+    }
+
+    private AesCbcWithIntegrity.SecretKeys makePassKeys(String passphrase, KdfParams kdf) {
+        Notify.Debug();
         return makePassKeys(
                 passphrase,
-                salt
+                makeSalt(passphrase),
+                kdf
         );
     }
 
-    private AesCbcWithIntegrity.SecretKeys makePassKeys(String passphrase,String salt) {
+    private AesCbcWithIntegrity.SecretKeys makePassKeys(String passphrase, String salt, KdfParams kdf) {
         try {
-            return AesCbcWithIntegrity.generateKeyFromPassword(passphrase, salt);
+            return KeyCache.getInstance().Derive(passphrase, salt, kdf);
         } catch (Exception e) {
-            Notify.Debug("failed to generateKeyFromPassword()",e);
+            Notify.Debug("failed to derive keys with "+kdf,e);
         }
         return null;
     }
 
+    private VaultFile.KeySource makeKeySource(final String passphrase) {
+        final String salt = makeSalt(passphrase);
+        return new VaultFile.KeySource() {
+            @Override
+            public AesCbcWithIntegrity.SecretKeys getKeys(KdfParams kdf) throws GeneralSecurityException {
+                Notify.Debug("Generating keys from passphrase");
+                return KeyCache.getInstance().Derive(passphrase, salt, kdf);
+            }
+        };
+    }
+
+    /**
+     * Forget the keys derived from passphrases this session. Done on lock
+     * and quit; the next open derives them again.
+     */
+    public static void ForgetKeys() {
+        KeyCache.getInstance().Clear();
+    }
+
     /**
      * Check passphrase by trying to actually decrypt the message. This is an
-     * expensive operation. Use sparingly.
+     * expensive operation the first time in a session. Use sparingly.
      *
      * @param passphrase the passphrase
      * @return the boolean
@@ -191,8 +522,7 @@ public class Storage {
     public boolean CheckPassphrase(String passphrase) {
         if (StoragePathExists()) {
             try {
-                AesCbcWithIntegrity.SecretKeys passKeys = makePassKeys(passphrase);
-                decrypt(passKeys); // discard results, just testing
+                decodeVault(new VaultFile(), makeKeySource(passphrase), null); // discard results, just testing
                 return true;
             } catch (Exception e) {
                 Notify.Debug("checkpassphrase failed",e);
@@ -201,25 +531,16 @@ public class Storage {
         return false;
     }
 
-    private String decrypt(AesCbcWithIntegrity.SecretKeys passKeys) throws Exception {
+    private VaultFile.Contents decodeVault(VaultFile vault, VaultFile.KeySource keys, VaultFile.Listener listener) throws Exception {
         Notify.Debug();
-        byte[] bytes;
-        if (mInstanceStream != null) {
-            bytes = IOUtils.toByteArray(mInstanceStream);
-        } else {
-            int length = (int) mInstancePath.length();
-            bytes = new byte[length];
-            FileInputStream input = new FileInputStream(mInstancePath);
-            try {
-                int total = input.read(bytes);
-                Notify.Debug("read "+total+" bytes");
-            } finally {
-                input.close();
-            }
+        if (mInstanceStream != null)
+            return vault.Decode(mInstanceStream, keys, listener);
+        InputStream input = VaultReader.Open(mInstancePath);
+        try {
+            return vault.Decode(input, keys, listener);
+        } finally {
+            input.close();
         }
-        String encoded = new String(bytes);
-        AesCbcWithIntegrity.CipherTextIvMac iv = new AesCbcWithIntegrity.CipherTextIvMac(encoded);
-        return AesCbcWithIntegrity.decryptString(iv,passKeys,"utf-8");
     }
 
     private boolean Open(String passphrase) {
@@ -233,10 +554,10 @@ public class Storage {
 
         mAccounts = null;
         mPassKeys = null;
+        mRekey = null;
+        mSavedVersion = mVersion;
 
         UpdateSpinnerText(R.string.storage_preparing);
-        Notify.Debug("Generating keys from passphrase");
-        AesCbcWithIntegrity.SecretKeys passKeys = makePassKeys(passphrase);
 
         if (!existed && mIsMainStorageInstance) {
             Notify.Debug("creating new dat file");
@@ -248,40 +569,59 @@ public class Storage {
             } catch (Exception e) {
                 Notify.Debug("failed to mkdirs on parent: " + mInstancePath.toString());
             }
+            Notify.Debug("Generating keys from passphrase");
+            KdfParams kdf = KdfParams.Calibrate();
             mAccounts = new ArrayList<AccountEntry>();
-            mPassKeys = passKeys;
+            mPassKeys = makePassKeys(passphrase, kdf);
+            mKdf = kdf;
             if (!Save()) {
                 Notify.Debug("failed to save new dat file");
                 mPassKeys = null;
-                mAccounts.clear();
+                mAccounts = new ArrayList<AccountEntry>();
                 return false;
             }
         }
 
         try {
             UpdateSpinnerText(R.string.storage_unlocking);
-            String plaintext = decrypt(passKeys);
-            if (plaintext != null) {
-                mPlainText = plaintext;
-                UpdateSpinnerText(R.string.storage_reading);
-                JSONArray ja = new JSONArray(plaintext);
-                ArrayList<AccountEntry> accounts = new ArrayList<AccountEntry>();
-                for (int i = 0; i < ja.length(); i++) {
-                    UpdateSpinnerText(
-                            R.string.storage_reading_of,
-                            (i + 1),
-                            ja.length()
-                    );
-                    String json = ja.getString(i);
-                    AccountEntry m = AccountEntry.ParseJSON(i, json);
-                    if (m != null) {
-                        accounts.add(m);
-                        Notify.Debug("found account: " + m.getLabel());
-                    }
+            // only the index is decrypted here, the secrets are left to
+            // their first use
+            VaultFile.Contents contents = decodeVault(mVaultFile, makeKeySource(passphrase), new VaultFile.Listener() {
+                @Override
+                public void onAccount(AccountEntry entry, int index, int count) {
+                    if (count > 0)
+                        UpdateSpinnerText(R.string.storage_reading_of, (index + 1), count);
+                    else
+                        UpdateSpinnerText(R.string.storage_reading);
+                    Notify.Debug("found account: " + entry.getLabel());
+                }
+            });
+            if (contents != null) {
+                ArrayList<AccountEntry> accounts = contents.accounts;
+                if (contents.damaged > 0) {
+                    Notify.Error("Damaged vault records skipped: "+contents.damaged);
+                    Notify.Long(getController(),R.string.error_storage_damaged,contents.damaged);
                 }
+                AesCbcWithIntegrity.SecretKeys passKeys = contents.keys;
+                if (mJournal != null)
+                    accounts = mJournal.Replay(contents.baseId, accounts, passKeys);
                 mAccounts = accounts;
                 mPassKeys = passKeys;
+                mKdf = contents.kdf;
+                if (!contents.current && mIsMainStorageInstance) {
+                    Notify.Debug("migrating vault to the current format");
+                    if (!Save(passKeys, mKdf))
+                        Notify.Debug("failed to migrate vault, keeping the old format");
+                }
+                if (mIsMainStorageInstance)
+                    ScheduleRekey(passphrase, passKeys, mKdf);
+                if (mBackups != null)
+                    SchedulePrune();
+                if (IsActive())
+                    mCodeCache.start();
                 getController().getIdleTimer().RestartTimer();
+                if (mIsMainStorageInstance)
+                    EvictVaults();
                 return true;
             }
         } catch (Exception e) {
@@ -303,14 +643,19 @@ public class Storage {
             UpdateSpinnerText(R.string.storage_unlocking);
             Storage temp_storage = new Storage(mContext,source);
             if (temp_storage.Open(passphrase)) {
-                if (merge) {
-                    if (MergeAccountListAndSave(temp_storage.GetAccounts()))
-                        temp_storage.Close();
-                    Notify.Debug("Failed to merge and save: " + source.toString());
-                } else {
-                    if (ReplaceAccountListAndSave(temp_storage.GetAccounts()))
-                        temp_storage.Close();
-                    Notify.Debug("Failed to replace and save: " + source.toString());
+                SetDurability(VaultWriter.Durability.RELAXED);
+                try {
+                    if (merge) {
+                        if (MergeAccountListAndSave(temp_storage.GetAccounts()))
+                            temp_storage.Close();
+                        Notify.Debug("Failed to merge and save: " + source.toString());
+                    } else {
+                        if (ReplaceAccountListAndSave(temp_storage.GetAccounts()))
+                            temp_storage.Close();
+                        Notify.Debug("Failed to replace and save: " + source.toString());
+                    }
+                } finally {
+                    SetDurability(VaultWriter.Durability.FULL);
                 }
             } else {
                 Notify.Debug("Failed to unlock with passphrase: "+source.toString());
@@ -326,14 +671,19 @@ public class Storage {
             UpdateSpinnerText(R.string.storage_unlocking);
             Storage temp_storage = new Storage(mContext,source);
             if (temp_storage.Open(passphrase)) {
-                if (merge) {
-                    if (MergeAccountListAndSave(temp_storage.GetAccounts()))
-                        temp_storage.Close();
-                    Notify.Debug("Failed to merge and save: " + source.toString());
-                } else {
-                    if (ReplaceAccountListAndSave(temp_storage.GetAccounts()))
-                        temp_storage.Close();
-                    Notify.Debug("Failed to replace and save: " + source.toString());
+                SetDurability(VaultWriter.Durability.RELAXED);
+                try {
+                    if (merge) {
+                        if (MergeAccountListAndSave(temp_storage.GetAccounts()))
+                            temp_storage.Close();
+                        Notify.Debug("Failed to merge and save: " + source.toString());
+                    } else {
+                        if (ReplaceAccountListAndSave(temp_storage.GetAccounts()))
+                            temp_storage.Close();
+                        Notify.Debug("Failed to replace and save: " + source.toString());
+                    }
+                } finally {
+                    SetDurability(VaultWriter.Durability.FULL);
                 }
             } else {
                 Notify.Debug("Failed to unlock with passphrase: "+source.toString());
@@ -348,21 +698,24 @@ public class Storage {
         if (IsOpen()) {
             UpdateSpinnerText(R.string.storage_merging);
             ArrayList<AccountEntry> old = mAccounts;
-            mAccounts = new ArrayList<AccountEntry>();
-            mAccounts.addAll(old);
+            // filled before it is published, the list is read off this thread
+            ArrayList<AccountEntry> accounts = new ArrayList<AccountEntry>(old);
             for (AccountEntry ae:entries) {
-                if (!AccountExists(ae)) {
-                    mAccounts.add(ae);
+                if (!AccountExists(accounts, ae)) {
+                    accounts.add(ae);
+                    mVersion++;
                     Notify.Debug("Merged: "+ae.toStringTitle());
                     UpdateSpinnerText(R.string.storage_merged,ae.toStringTitle());
                 } else {
                     Notify.Debug("Exists: "+ae.toStringTitle());
                 }
             }
+            mAccounts = accounts;
             if (Save())
                 return true;
             // recover on fail
             mAccounts = old;
+            mVersion++;
         }
         return false;
     }
@@ -379,19 +732,41 @@ public class Storage {
         if (IsOpen()) {
             UpdateSpinnerText(R.string.storage_replacing);
             ArrayList<AccountEntry> old = mAccounts;
-            mAccounts = new ArrayList<AccountEntry>();
+            ArrayList<AccountEntry> accounts = new ArrayList<AccountEntry>();
             for (AccountEntry ae:entries) {
-                mAccounts.add(ae);
+                accounts.add(ae);
                 UpdateSpinnerText(R.string.storage_replaced,ae.toStringTitle());
             }
+            mAccounts = accounts;
+            mVersion++;
             if (Save())
                 return true;
             // recover on fail
             mAccounts = old;
+            mVersion++;
         }
         return false;
     }
 
+    /**
+     * Replace account list and save it a moment later. Any number of calls
+     * made within Constants.SAVE_DELAY of each other are saved together,
+     * for interactions such as dragging an account across the list, which
+     * replaces the list on every step.
+     *
+     * @param entries the entries
+     * @return the boolean
+     */
+    public boolean ReplaceAccountList(List<AccountEntry> entries) {
+        Notify.Debug();
+        if (!IsOpen())
+            return false;
+        mAccounts = new ArrayList<AccountEntry>(entries);
+        mVersion++;
+        RequestSave();
+        return true;
+    }
+
     /**
      * Add account.
      *
@@ -400,7 +775,14 @@ public class Storage {
      */
     public boolean AddAccount(AccountEntry entry) {
         Notify.Debug();
-        return IsOpen() && mAccounts.add(entry);
+        if (!IsOpen())
+            return false;
+        ArrayList<AccountEntry> accounts = new ArrayList<AccountEntry>(mAccounts);
+        if (!accounts.add(entry))
+            return false;
+        mAccounts = accounts;
+        mVersion++;
+        return true;
     }
 
     /**
@@ -412,8 +794,13 @@ public class Storage {
     public boolean RemoveAccount(AccountEntry entry) {
         Notify.Debug();
         if (IsOpen()) {
-            if (mAccounts.contains(entry)) {
-                return mAccounts.remove(entry);
+            ArrayList<AccountEntry> accounts = new ArrayList<AccountEntry>(mAccounts);
+            int idx = IndexOf(accounts, entry);
+            if (idx >= 0) {
+                accounts.remove(idx);
+                mAccounts = accounts;
+                mVersion++;
+                return true;
             }
         }
         return false;
@@ -428,10 +815,12 @@ public class Storage {
     public void ReplaceAccount(AccountEntry old_entry, AccountEntry new_entry) {
         Notify.Debug();
         if (IsOpen()) {
-            if (mAccounts.contains(old_entry)) {
-                int idx = mAccounts.indexOf(old_entry);
-                mAccounts.add(idx,new_entry);
-                mAccounts.remove(old_entry);
+            ArrayList<AccountEntry> accounts = new ArrayList<AccountEntry>(mAccounts);
+            int idx = IndexOf(accounts, old_entry);
+            if (idx >= 0) {
+                accounts.set(idx,new_entry);
+                mAccounts = accounts;
+                mVersion++;
             }
         }
     }
@@ -445,28 +834,60 @@ public class Storage {
     public AccountEntry FindAccount(Uri in) {
         Notify.Debug();
         try {
-            for (int i=0; i < mAccounts.size(); i++) {
-                AccountEntry ae = mAccounts.get(i);
-                Uri uri = ae.toUri();
-                if (uri.getScheme().equals(in.getScheme())) {
-                    if (uri.getHost().equals(in.getHost())) {
-                        if (uri.getPath().equals(in.getPath())) {
-                            String uri_secret = uri.getQueryParameter("secret").toUpperCase();
-                            String in_secret = in.getQueryParameter("secret").toUpperCase();
-                            if (uri_secret.equals(in_secret)) {
-                                return ae;
-                            }
-                        }
-                    }
-                }
+            for (AccountEntry ae : mAccounts) {
+                if (ae.matches(in))
+                    return ae;
             }
         } catch (NullPointerException ignore) {}
         return null;
     }
 
-    private boolean AccountExists(AccountEntry entry) {
+    /**
+     * Advance the counter of a HOTP account and save it on the storage
+     * thread, which journals the new counter as a single record.
+     *
+     * @param entry the entry
+     * @return the replacement entry holding the new counter
+     */
+    public AccountEntry AdvanceCounter(AccountEntry entry) {
         Notify.Debug();
-        return mAccounts.contains(entry);
+        if (!IsOpen() || !entry.isCounterBased())
+            return entry;
+        ArrayList<AccountEntry> accounts = new ArrayList<AccountEntry>(mAccounts);
+        int idx = IndexOf(accounts, entry);
+        if (idx < 0)
+            return entry;
+        AccountEntry next = entry.WithCounter(entry.getCounter() + 1);
+        accounts.set(idx, next);
+        mAccounts = accounts;
+        mVersion++;
+        ScheduleSave();
+        return next;
+    }
+
+    /**
+     * Is there an account like the entry, secret included? Only accounts
+     * equal in their index fields have their secret read.
+     */
+    private static boolean AccountExists(List<AccountEntry> accounts, AccountEntry entry) {
+        for (AccountEntry ae : accounts) {
+            if (ae.equals(entry) && ae.getSecret().equals(entry.getSecret()))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * The index of the entry itself or, failing that, of the first account
+     * equal to it. Accounts differing only in their secret are equal, the
+     * instance held is preferred.
+     */
+    private static int IndexOf(List<AccountEntry> accounts, AccountEntry entry) {
+        for (int i = 0; i < accounts.size(); i++) {
+            if (accounts.get(i) == entry)
+                return i;
+        }
+        return accounts.indexOf(entry);
     }
 
     private void ChangePassphrase(String old_phrase, String new_phrase) throws Exception {
@@ -476,9 +897,11 @@ public class Storage {
             Close();
         }
         if (Open(old_phrase)) {
-            AesCbcWithIntegrity.SecretKeys passKeys = makePassKeys(new_phrase);
-            if (Save(passKeys)) {
+            KdfParams kdf = KdfParams.Calibrate();
+            AesCbcWithIntegrity.SecretKeys passKeys = makePassKeys(new_phrase, kdf);
+            if (Save(passKeys, kdf)) {
                 mPassKeys = passKeys;
+                mKdf = kdf;
                 return;
             }
             throw new Exception(mContext.getString(R.string.error_change_pass_fail));
@@ -488,86 +911,340 @@ public class Storage {
     }
 
     /**
-     * Save.
+     * Save. Changes since the last save are appended to the journal; the
+     * vault file is only rewritten when the journal cannot be used, and
+     * compacted in the background once the journal grows long. Runs on the
+     * storage thread, see PerformOperation() and ScheduleSave().
+     *
+     * @return the boolean
+     */
+    public synchronized boolean Save() {
+        int version = mVersion;
+        Rekey rekey = mRekey;
+        if (IsOpen() && rekey != null) {
+            mRekey = null;
+            if (rekey.from == mPassKeys && Save(rekey.keys, rekey.kdf)) {
+                Notify.Debug("re-keyed vault with "+rekey.kdf);
+                mPassKeys = rekey.keys;
+                mKdf = rekey.kdf;
+                return true;
+            }
+        }
+        if (IsOpen() && mJournal != null && mJournal.Append(mAccounts, mPassKeys)) {
+            mSavedVersion = version;
+            if (mJournal.getPending() >= VaultJournal.COMPACT_THRESHOLD)
+                ScheduleCompaction();
+            return true;
+        }
+        return Save(mPassKeys, mKdf);
+    }
+
+    /**
+     * Has the account list changed since it was last saved? A re-key
+     * waiting for the next save counts as a change.
      *
      * @return the boolean
      */
-    public boolean Save() {
-        return Save(mPassKeys);
+    public boolean IsModified() {
+        return IsOpen() && (mVersion != mSavedVersion || mRekey != null);
+    }
+    private boolean Save(final AesCbcWithIntegrity.SecretKeys passKeys, final KdfParams kdf) {
+        return Save(passKeys,kdf,null);
+    }
+
+    private synchronized Handler getSaveHandler() {
+        if (mSaveHandler == null)
+            mSaveHandler = new Handler(Looper.getMainLooper());
+        return mSaveHandler;
+    }
+
+    /**
+     * Request a save. The save runs on the storage thread once no further
+     * request has come in for Constants.SAVE_DELAY, or earlier on
+     * FlushSave().
+     */
+    public void RequestSave() {
+        mSavePending.set(true);
+        Handler handler = getSaveHandler();
+        handler.removeCallbacks(mDeferredSave);
+        handler.postDelayed(mDeferredSave, Constants.SAVE_DELAY);
+    }
+
+    /**
+     * Save on the storage thread, after the operations already waiting,
+     * without the delay of RequestSave().
+     */
+    public void ScheduleSave() {
+        mSavePending.set(true);
+        ScheduleFlush();
+    }
+
+    /**
+     * Run a requested save on the storage thread, after the operations
+     * already waiting. A flush already waiting covers the request, only
+     * one is queued at a time.
+     */
+    private void ScheduleFlush() {
+        if (!mFlushQueued.compareAndSet(false, true))
+            return;
+        Hold();
+        StorageExecutor.getInstance().submit(Op.FLUSH, mContext, this, new StorageExecutor.Work() {
+            @Override
+            public boolean run() {
+                // requests from here on need a flush of their own
+                mFlushQueued.set(false);
+                return FlushSave();
+            }
+        }, null);
+    }
+
+    /**
+     * Run a requested save now, if there is one. Called when the vault
+     * closes and when the application is paused.
+     *
+     * @return false if the save failed
+     */
+    public boolean FlushSave() {
+        if (mSaveHandler != null)
+            mSaveHandler.removeCallbacks(mDeferredSave);
+        if (!mSavePending.getAndSet(false))
+            return true;
+        Notify.Debug();
+        return !IsOpen() || Save();
     }
-    private boolean Save(final AesCbcWithIntegrity.SecretKeys passKeys) {
-        return Save(passKeys,null);
+
+    /**
+     * Set how much the vault writes sync. Bulk operations relax it while
+     * they run; going back to full durability syncs the vault and journal.
+     *
+     * @param durability the durability
+     */
+    public void SetDurability(VaultWriter.Durability durability) {
+        Notify.Debug();
+        VaultWriter.Durability previous = mDurability;
+        mDurability = durability;
+        if (mJournal != null)
+            mJournal.setDurability(durability);
+        if (previous != VaultWriter.Durability.FULL && durability == VaultWriter.Durability.FULL && mInstancePath != null)
+            VaultWriter.Sync(mInstancePath);
     }
-    private boolean Save(final AesCbcWithIntegrity.SecretKeys passKeys, final File save_to) {
+    private synchronized boolean Save(final AesCbcWithIntegrity.SecretKeys passKeys, final KdfParams kdf, final File save_to) {
         Notify.Debug();
+        int version = mVersion;
+        // one snapshot for the file and the journal, the list may be replaced meanwhile
+        ArrayList<AccountEntry> accounts = mAccounts;
         File target_file;
         if (save_to != null) {
             target_file = save_to;
-            ShowSpinnerBox(R.string.storage_exporting,mAccounts.size());
+            ShowSpinnerBox(R.string.storage_exporting,accounts.size());
         } else {
             target_file = mInstancePath;
-            ShowSpinnerBox(R.string.storage_saving,mAccounts.size());
+            ShowSpinnerBox(R.string.storage_saving,accounts.size());
         }
         if (target_file == null)
             target_file = mDefaultPath;
-        JSONArray ja = new JSONArray();
-        for (int i=0; i<mAccounts.size(); i++) {
-            ja.put(mAccounts.get(i).toString());
-        }
-        String out = ja.toString();
-        File backup = new File(target_file.getAbsolutePath()+".backup."+(System.currentTimeMillis()/1000));
-        if (target_file.exists()) {
-            if (!target_file.renameTo(backup))
-                Notify.Error("Failed to backup target file: "+backup.toString());
-        }
+        boolean journaled = save_to == null && mJournal != null;
+        if (journaled)
+            mJournal.Invalidate(); // a compaction must not swap in over this save
         try {
-            AesCbcWithIntegrity.CipherTextIvMac encrypted;
+            VaultFile.Encoded encrypted;
             UpdateSpinnerText(R.string.storage_locking);
-            encrypted = AesCbcWithIntegrity.encrypt(out,passKeys,"utf-8");
+            if (journaled)
+                encrypted = mVaultFile.Encode(accounts, passKeys, kdf);
+            else
+                encrypted = new VaultFile().Encode(accounts, passKeys, kdf);
             UpdateSpinnerText(R.string.storage_writing);
-            FileOutputStream output;
-            output = new FileOutputStream(target_file, false);
-            output.write(encrypted.toString().getBytes());
-            output.flush();
-            output.close();
-            if (backup.exists()) {
-                if (!backup.delete()) {
-                    Notify.Error("Failed to cleanup restore file: "+backup.toString());
-                }
-            }
+            VaultWriter.Write(target_file, encrypted.bytes, save_to != null ? VaultWriter.Durability.FULL : mDurability);
+            if (journaled)
+                mJournal.Reset(encrypted.baseId, accounts);
+            if (save_to == null)
+                mSavedVersion = version;
+            if (save_to == null && mBackups != null)
+                mBackups.Add(encrypted, target_file);
             HideSpinnerBox();
             return true;
         } catch (Exception e) {
             Notify.Error("Failed to write account data",e);
             Notify.Long(getController(),R.string.error_storage_save);
-            if (backup.exists()) {
-                if (!backup.renameTo(target_file)) {
-                    Notify.Error("Failed to recover backup file: "+backup.toString());
+        }
+        HideSpinnerBox();
+        return false;
+    }
+
+    private synchronized ExecutorService getCompactor() {
+        if (mCompactor == null)
+            mCompactor = Executors.newSingleThreadExecutor();
+        return mCompactor;
+    }
+
+    /**
+     * Derive keys for the calibrated parameters in the background, if the
+     * vault was keyed for a cost far off them. The vault is re-keyed the
+     * next time it is saved, unless its keys changed meanwhile.
+     */
+    private void ScheduleRekey(final String passphrase, final AesCbcWithIntegrity.SecretKeys from, final KdfParams kdf) {
+        getCompactor().execute(new Runnable() {
+            @Override
+            public void run() {
+                KdfParams calibrated = KdfParams.Calibrate();
+                if (!kdf.shouldRekey(calibrated))
+                    return;
+                Notify.Debug("vault keyed with "+kdf+", re-keying with "+calibrated+" on the next save");
+                AesCbcWithIntegrity.SecretKeys keys = makePassKeys(passphrase, calibrated);
+                if (keys != null && mPassKeys == from)
+                    mRekey = new Rekey(from, keys, calibrated);
+            }
+        });
+    }
+
+    private void SchedulePrune() {
+        final VaultBackups backups = mBackups;
+        getCompactor().execute(new Runnable() {
+            @Override
+            public void run() {
+                backups.Prune();
+            }
+        });
+    }
+
+    /**
+     * Gets the backups of the vault, newest first. Only the default
+     * instance keeps backups.
+     *
+     * @return the backups
+     */
+    public List<VaultBackups.Generation> GetBackups() {
+        if (mBackups == null)
+            return new ArrayList<VaultBackups.Generation>();
+        return mBackups.getGenerations();
+    }
+
+    /**
+     * Restore a backup in place of the vault, on the storage thread (see
+     * Op.RESTORE). The backup is taken out of rotation first; an open vault
+     * is then written in full, which makes its current state a backup of
+     * its own, and closed. The restored vault is read on the next open.
+     *
+     * @param path the path of the backup, as in VaultBackups.Generation.file
+     * @return the boolean
+     */
+    private boolean RestoreBackup(String path) {
+        Notify.Debug();
+        if (mBackups == null || path == null)
+            return false;
+        for (VaultBackups.Generation generation : mBackups.getGenerations()) {
+            if (!generation.file.getPath().equals(path))
+                continue;
+            File taken = null;
+            try {
+                taken = mBackups.Take(generation);
+                if (IsOpen()) {
+                    if (!Save(mPassKeys, mKdf))
+                        throw new Exception("cannot save the vault before restoring");
+                    Close();
                 }
+                mBackups.Restore(taken);
+                return true;
+            } catch (Exception e) {
+                Notify.Error("Failed to restore the vault backup",e);
+                if (taken != null && taken.exists() && !taken.delete())
+                    Notify.Error("Failed to cleanup restore file: "+taken.toString());
             }
+            return false;
         }
-        HideSpinnerBox();
+        Notify.Debug("no such backup: "+path);
+        return false;
+    }
+
+    private void ScheduleCompaction() {
+        if (!mCompacting.compareAndSet(false, true))
+            return;
+        final AesCbcWithIntegrity.SecretKeys passKeys = mPassKeys;
+        final KdfParams kdf = mKdf;
+        getCompactor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!Compact(passKeys, kdf))
+                        Notify.Debug("vault compaction skipped");
+                } finally {
+                    mCompacting.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Fold the journal into a fresh vault file. Runs in the background; the
+     * journal keeps taking records meanwhile and those carry over. Only the
+     * accounts changed since the vault was last read or written are
+     * encrypted again.
+     */
+    private boolean Compact(AesCbcWithIntegrity.SecretKeys passKeys, KdfParams kdf) {
+        Notify.Debug();
+        if (mJournal == null)
+            return false;
+        String baseId;
+        int applied;
+        List<AccountEntry> state;
+        synchronized (mJournal) {
+            baseId = mJournal.getBaseId();
+            applied = mJournal.getPending();
+            state = mJournal.getState();
+        }
+        if (baseId == null || mInstancePath == null)
+            return false;
+        File pending = null;
+        try {
+            VaultFile.Encoded encrypted = mVaultFile.Encode(state, passKeys, kdf);
+            pending = VaultWriter.Stage(mInstancePath, ".compact", encrypted.bytes);
+            // linked before the swap, a full save may replace the vault right after it;
+            // should the swap fail, the generation still holds a state the vault was in
+            if (mBackups != null)
+                mBackups.Add(encrypted, pending);
+            if (mJournal.Commit(pending, mInstancePath, baseId, encrypted.baseId, applied, passKeys))
+                return true;
+        } catch (Exception e) {
+            Notify.Error("Failed to compact the vault journal",e);
+        }
+        if (pending != null && pending.exists() && !pending.delete())
+            Notify.Error("Failed to cleanup compaction file: "+pending.toString());
         return false;
     }
 
     /**
-     * Close.
+     * Close. The vault is only written if it changed since the last save,
+     * so closing a session that only read codes does no I/O at all.
      *
      * @return the boolean
      */
     public boolean Close() {
         if (!IsOpen()) {
-            getController().getIdleTimer().StopTimer();
+            StopIdleTimer();
             return false;
         }
-        if (!Save())
+        if (mSaveHandler != null)
+            mSaveHandler.removeCallbacks(mDeferredSave);
+        mSavePending.set(false); // saved right here
+        if (!IsModified())
+            Notify.Debug("nothing changed, skipping the save on Close()");
+        else if (!Save())
             Notify.Debug("failed to save on Close()");
+        mCodeCache.stop();
         mAccounts = null;
         mPassKeys = null;
-        getController().getIdleTimer().StopTimer();
+        mKdf = null;
+        mRekey = null;
+        StopIdleTimer();
         return true;
     }
 
+    private void StopIdleTimer() {
+        // the idle timer runs for the active vault, not the evicted ones
+        if (!mIsMainStorageInstance || IsActive())
+            getController().getIdleTimer().StopTimer();
+    }
+
     /**
      * Gets export file name. Not used yet because the filedialogs library
      * does not support initial file names yet.
@@ -582,9 +1259,10 @@ public class Storage {
 
     private boolean Export(String passphrase, String filepath) {
         UpdateSpinnerText(R.string.storage_preparing);
-        AesCbcWithIntegrity.SecretKeys passkey = makePassKeys(passphrase,passphrase);
+        KdfParams kdf = KdfParams.Calibrate();
+        AesCbcWithIntegrity.SecretKeys passkey = makePassKeys(passphrase,passphrase,kdf);
         File target = new File(filepath);
-        return Save(passkey, target);
+        return Save(passkey, kdf, target);
     }
 
 
@@ -606,154 +1284,190 @@ public class Storage {
         void onStorageFailure();
     }
 
+    /**
+     * The storage operations, with the spinner label shown while they run
+     * (0 for none) and their priority (lower runs first).
+     */
+    public enum Op {
+        /**
+         * Open (unlock) with a passphrase.
+         */
+        OPEN(R.string.storage_unlocking, 0),
+        /**
+         * Close (lock). Runs in order with opens, so a lock and an unlock
+         * asked for in turn do not swap.
+         */
+        CLOSE(R.string.storage_locking, 0),
+        /**
+         * Close a vault evicted from the registry, quietly.
+         */
+        EVICT(0, 1),
+        /**
+         * Change the passphrase.
+         */
+        CHANGE(R.string.change_passphrase, 2),
+        /**
+         * Save.
+         */
+        SAVE(R.string.storage_writing, 3, true),
+        /**
+         * Run a requested save, quietly.
+         */
+        FLUSH(0, 3),
+        /**
+         * Import, adding the accounts not yet present.
+         */
+        IMPORT_MERGE(R.string.storage_import_merge, 4, true),
+        /**
+         * Import, replacing all accounts.
+         */
+        IMPORT_REPLACE(R.string.storage_import_replace, 4, true),
+        /**
+         * Export to a file.
+         */
+        EXPORT(R.string.export_data, 5, true),
+        /**
+         * Restore a backup, named by its file path.
+         */
+        RESTORE(R.string.storage_restoring, 2);
+
+        /**
+         * The spinner label.
+         */
+        public final int label;
+        /**
+         * The priority.
+         */
+        public final int priority;
+        /**
+         * Whether the operation is refused once StorageExecutor.MAX_PENDING
+         * operations wait. Locking and the like always run.
+         */
+        public final boolean bounded;
+
+        Op(int label, int priority) {
+            this(label, priority, false);
+        }
+
+        Op(int label, int priority, boolean bounded) {
+            this.label = label;
+            this.priority = priority;
+            this.bounded = bounded;
+        }
+    }
+
     /**
      * Perform a "storage operation".
      *
      * @param context   the context
-     * @param oper      the oper
+     * @param op        the op
      * @param operation the operation
+     * @return the task, null if refused
      */
-    public static void PerformOperation(final Context context, String oper, final Storage.Operation operation) {
-        PerformOperation(context, oper, null, null, operation);
+    public static StorageExecutor.Task PerformOperation(final Context context, Op op, final Storage.Operation operation) {
+        return PerformOperation(context, op, null, null, operation);
     }
 
     /**
      * Perform a "storage operation".
      *
      * @param context   the context
-     * @param oper      the oper
+     * @param op        the op
      * @param data      the data
      * @param operation the operation
+     * @return the task, null if refused
      */
-    public static void PerformOperation(final Context context, String oper, String data, final Storage.Operation operation) {
-        PerformOperation(context, oper, data, null, operation);
+    public static StorageExecutor.Task PerformOperation(final Context context, Op op, String data, final Storage.Operation operation) {
+        return PerformOperation(context, op, data, null, operation);
     }
 
     /**
-     * Perform a "storage operation".
+     * Perform a "storage operation" on the storage thread. The callbacks
+     * run on the main thread.
      *
      * @param context   the context
-     * @param oper      the oper
+     * @param op        the op
      * @param data      the data
      * @param extra     the extra
      * @param operation the operation
+     * @return the task, null if refused
      */
-    public static void PerformOperation(final Context context, String oper, String data, String extra, final Storage.Operation operation) {
+    public static StorageExecutor.Task PerformOperation(final Context context, final Op op, final String data, final String extra, final Storage.Operation operation) {
         Notify.Debug();
-        final int label;
-        switch (oper) {
-            case "open":           label = R.string.storage_unlocking;      break;
-            case "save":           label = R.string.storage_writing;        break;
-            case "close":          label = R.string.storage_locking;        break;
-            case "change":         label = R.string.change_passphrase;      break;
-            case "export":         label = R.string.export_data;            break;
-            case "import-merge":   label = R.string.storage_import_merge;   break;
-            case "import-replace": label = R.string.storage_import_replace; break;
-            default:
-                Notify.Debug("Unknown operation string: "+oper);
-                return;
-        }
-
-        new AsyncTask<String,Void,Storage>() {
+        final Storage storage = HoldInstance(context, mActiveVault);
+        return StorageExecutor.getInstance().submit(op, context, storage, new StorageExecutor.Work() {
             @Override
-            protected void onPreExecute() {
-                super.onPreExecute();
-                SupportBar.getInstance().ShowSpinnerBox(label);
+            public boolean run() throws Exception {
+                switch (op) {
+                    case OPEN:
+                        return storage.Open(data);
+                    case SAVE:
+                        return storage.Save();
+                    case FLUSH:
+                        return storage.FlushSave();
+                    case CHANGE:
+                        storage.ChangePassphrase(data, extra);
+                        return true;
+                    case CLOSE:
+                    case EVICT:
+                        return storage.Close();
+                    case EXPORT:
+                        return extra != null && storage.Export(data, extra);
+                    case IMPORT_MERGE:
+                        return storage.Import(context, data, extra, true);
+                    case IMPORT_REPLACE:
+                        return storage.Import(context, data, extra, false);
+                    case RESTORE:
+                        return storage.RestoreBackup(data);
+                }
+                return false;
             }
+        }, operation);
+    }
 
-            @Override
-            protected Storage doInBackground(String... strings) {
-                Notify.Debug();
-                Storage storage = getInstance(context);
-                boolean merge = false;
-                switch (strings[0]) {
-                    case "open":
-                        if (storage.Open(strings[1]))
-                            operation.onStorageSuccess(context,storage);
-                        else
-                            operation.onStorageFailure();
-                        break;
-                    case "save":
-                        if (storage.Save())
-                            operation.onStorageSuccess(context,storage);
-                        else
-                            operation.onStorageFailure();
-                        break;
-                    case "change":
+    private boolean Import(Context context, String passphrase, String source, boolean merge) {
+        if (source == null)
+            return false;
+        Uri in = Uri.parse(source);
+        if (in == null)
+            return false;
+        try {
+            switch (in.getScheme()) {
+                case "file":
+                    String path = in.getEncodedPath();
+                    File file = new File(path);
+                    try {
+                        InputStream stream = VaultReader.Open(file);
                         try {
-                            storage.ChangePassphrase(strings[1], strings[2]);
-                            operation.onStorageSuccess(context, storage);
-                        } catch (Exception e) {
-                            Notify.Debug(e.getMessage());
-                            operation.onStorageFailure();
+                            ImportFromStream(stream, passphrase, merge);
+                        } finally {
+                            stream.close();
                         }
-                        break;
-                    case "close":
-                        if (storage.Close())
-                            operation.onStorageSuccess(context,storage);
-                        else
-                            operation.onStorageFailure();
-                        break;
-                    case "export":
-                        if (strings[2] != null && storage.Export(strings[1],strings[2]))
-                            operation.onStorageSuccess(context,storage);
-                        else
-                            operation.onStorageFailure();
-                        break;
-                    case "import-merge":
-                        merge = true;
-                        // no break; fallthrough to import-replace
-                    case "import-replace":
-                        if (strings[2] != null) {
-                            Uri in = Uri.parse(strings[2]);
-                            if (in != null) {
-                                try {
-                                    switch (in.getScheme()) {
-                                        case "file":
-                                            String path = in.getEncodedPath();
-                                            File file = new File(path);
-                                            try {
-                                                InputStream stream = new FileInputStream(file);
-                                                storage.ImportFromStream(stream, strings[1], merge);
-                                                operation.onStorageSuccess(context, storage);
-                                                return storage;
-                                            } catch (Exception e) {
-                                                Notify.Debug("Failed to ImportFromStream(file)",e);
-                                                operation.onStorageFailure();
-                                            }
-                                            break;
-                                        case "content":
-                                            try {
-                                                InputStream stream = context.getContentResolver().openInputStream(in);
-                                                storage.ImportFromStream(stream, strings[1], merge);
-                                                operation.onStorageSuccess(context, storage);
-                                                return storage;
-                                            } catch (Exception e) {
-                                                Notify.Debug("Failed to ImportFromStream(content)",e);
-                                                operation.onStorageFailure();
-                                            }
-                                            break;
-                                        default:
-                                            storage.ImportFromFile(new File(strings[2]), strings[1], merge);
-                                            operation.onStorageSuccess(context, storage);
-                                            return storage;
-                                    }
-                                } catch (Exception e) {
-                                    Notify.Debug("failed to parse URI: \""+strings[2]+"\"",e);
-                                }
-                            }
+                        return true;
+                    } catch (Exception e) {
+                        Notify.Debug("Failed to ImportFromStream(file)",e);
+                    }
+                    return false;
+                case "content":
+                    try {
+                        InputStream stream = VaultReader.Open(context.getContentResolver(), in);
+                        try {
+                            ImportFromStream(stream, passphrase, merge);
+                        } finally {
+                            stream.close();
                         }
-                        operation.onStorageFailure();
-                        break;
-                }
-                return storage;
-            }
-
-            @Override
-            protected void onPostExecute(Storage storage) {
-                super.onPostExecute(storage);
-                SupportBar.getInstance().HideAll();
+                        return true;
+                    } catch (Exception e) {
+                        Notify.Debug("Failed to ImportFromStream(content)",e);
+                    }
+                    return false;
+                default:
+                    ImportFromFile(new File(source), passphrase, merge);
+                    return true;
             }
-        }.execute(oper,data,extra);
+        } catch (Exception e) {
+            Notify.Debug("failed to parse URI: \""+source+"\"",e);
+        }
+        return false;
     }
 }
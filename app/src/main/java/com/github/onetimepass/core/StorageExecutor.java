@@ -0,0 +1,205 @@
+package com.github.onetimepass.core;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The single writer running storage operations.
+ *
+ * Operations run one at a time on a dedicated thread, so saves, imports and
+ * the like never interleave. Queued operations run by priority, then in
+ * the order they were submitted; an unlock waiting behind an export runs
+ * first. Operations can be cancelled until they start. Once MAX_PENDING
+ * operations wait, further bounded ones (saves, imports, exports) fail
+ * straight away; locking, unlocking and the like always run. The spinner
+ * and the completion callbacks are delivered on the main thread.
+ */
+public class StorageExecutor {
+    /**
+     * The most operations waiting to run before bounded ones are refused.
+     */
+    public static final int MAX_PENDING = 8;
+
+    /**
+     * The work of an operation, run on the storage thread.
+     */
+    interface Work {
+        /**
+         * Run.
+         *
+         * @return true on success
+         * @throws Exception on failures
+         */
+        boolean run() throws Exception;
+    }
+
+    /**
+     * A submitted operation.
+     */
+    public final class Task implements Runnable, Comparable<Task> {
+        private final Storage.Op mOp;
+        private final long mSequence;
+        private final Context mContext;
+        private final Storage mStorage;
+        private final Work mWork;
+        private final Storage.Operation mCallback;
+        private final AtomicBoolean mStarted = new AtomicBoolean(false);
+
+        Task(Storage.Op op, Context context, Storage storage, Work work, Storage.Operation callback) {
+            mOp = op;
+            mSequence = mSubmitted.getAndIncrement();
+            mContext = context;
+            mStorage = storage;
+            mWork = work;
+            mCallback = callback;
+        }
+
+        /**
+         * Gets the operation.
+         *
+         * @return the op
+         */
+        public Storage.Op getOp() {
+            return mOp;
+        }
+
+        /**
+         * Cancel the operation if it has not started yet. A cancelled
+         * operation delivers no callback.
+         *
+         * @return true if the operation will not run
+         */
+        public boolean cancel() {
+            if (!mStarted.compareAndSet(false, true))
+                return false;
+            mExecutor.remove(this);
+            mStorage.Release();
+            Notify.Debug("cancelled "+mOp);
+            return true;
+        }
+
+        @Override
+        public void run() {
+            if (!mStarted.compareAndSet(false, true))
+                return; // cancelled
+            if (mOp.label != 0) {
+                mMain.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        SupportBar.getInstance().ShowSpinnerBox(mOp.label);
+                    }
+                });
+            }
+            boolean success;
+            try {
+                success = mWork.run();
+            } catch (Exception e) {
+                Notify.Error("Storage operation failed: "+mOp,e);
+                success = false;
+            } finally {
+                mStorage.Release();
+            }
+            deliver(success, mOp.label != 0);
+        }
+
+        private void deliver(final boolean success, final boolean hide) {
+            mMain.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (hide)
+                        SupportBar.getInstance().HideAll();
+                    if (mCallback == null)
+                        return;
+                    if (success)
+                        mCallback.onStorageSuccess(mContext, mStorage);
+                    else
+                        mCallback.onStorageFailure();
+                }
+            });
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (mOp.priority != other.mOp.priority)
+                return mOp.priority < other.mOp.priority ? -1 : 1;
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    private static StorageExecutor mInstance = null;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMain = new Handler(Looper.getMainLooper());
+    private final AtomicLong mSubmitted = new AtomicLong();
+
+    private StorageExecutor() {
+        mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "Storage");
+                    }
+                });
+    }
+
+    /**
+     * Gets the storage executor.
+     *
+     * @return the instance
+     */
+    public static synchronized StorageExecutor getInstance() {
+        if (mInstance == null)
+            mInstance = new StorageExecutor();
+        return mInstance;
+    }
+
+    /**
+     * Submit an operation.
+     *
+     * @param op       the operation
+     * @param context  the context
+     * @param storage  the instance the operation runs on, held by the caller
+     *                 (Storage.Hold()) until the operation ends, handed to the callback
+     * @param work     the work
+     * @param callback the callback, may be null
+     * @return the task, or null if the operation is bounded and too many
+     *         operations are waiting already
+     */
+    synchronized Task submit(Storage.Op op, Context context, Storage storage, Work work, Storage.Operation callback) {
+        Task task = new Task(op, context, storage, work, callback);
+        if (op.bounded && mExecutor.getQueue().size() >= MAX_PENDING) {
+            Notify.Error("Too many storage operations waiting, refusing "+op);
+            task.mStarted.set(true);
+            storage.Release();
+            task.deliver(false, false); // leave the spinner of the running one be
+            return null;
+        }
+        mExecutor.execute(task);
+        return task;
+    }
+}
@@ -30,6 +30,7 @@ import android.widget.EditText;
 
 import com.github.onetimepass.R;
 import com.github.onetimepass.core.control.Controller;
+import com.github.onetimepass.core.otp.OtpGenerator;
 
 
 /**
@@ -106,23 +107,39 @@ public class Utility {
     }
 
     /**
-     * Verify otpauth uri boolean.
+     * Verify otpauth uri boolean. Digits and periods no code can be
+     * generated for make the uri invalid.
      *
      * @param in the in
      * @return the boolean
      */
     public static boolean verifyOtpauthUri(Uri in) {
         if (in.getScheme().equals("otpauth")) {
-            if (in.getHost().equals("totp")) {
+            if (in.getHost().equals("totp") || in.getHost().equals("hotp")) {
                 String secret = in.getQueryParameter("secret");
                 if (secret != null && !secret.isEmpty()) {
-                    return true;
+                    return OtpGenerator.IsValidDigits(parseParameter(in, "digits", OtpGenerator.DEFAULT_DIGITS))
+                            && OtpGenerator.IsValidPeriod(parseParameter(in, "period", OtpGenerator.DEFAULT_PERIOD));
                 }
             }
         }
         return false;
     }
 
+    /**
+     * Parse a numeric query parameter, -1 if it is there but not a number.
+     */
+    private static int parseParameter(Uri in, String name, int fallback) {
+        String value = in.getQueryParameter(name);
+        if (value == null)
+            return fallback;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
 
     /**
      * Make password text watcher to manage state indicators visually.
@@ -22,6 +22,12 @@ import androidx.annotation.Nullable;
 import com.amulyakhare.textdrawable.TextDrawable;
 import com.amulyakhare.textdrawable.util.ColorGenerator;
 import com.github.onetimepass.core.Notify;
+import com.github.onetimepass.core.otp.OtpAlgorithm;
+import com.github.onetimepass.core.otp.OtpCode;
+import com.github.onetimepass.core.otp.OtpClock;
+import com.github.onetimepass.core.otp.OtpGenerator;
+import com.github.onetimepass.core.otp.OtpSource;
+import com.github.onetimepass.core.otp.OtpType;
 import com.google.zxing.BarcodeFormat;
 import com.google.zxing.MultiFormatWriter;
 import com.google.zxing.common.BitMatrix;
@@ -30,33 +36,159 @@ import org.apache.commons.codec.binary.Base32;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.net.URLEncoder;
-import java.util.Locale;
-
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 
 /**
  * The Account definition.
  *
  * This is the "M" in the "MVC" pattern though it does include some behaviors
  * of it's own such as generating QR codes and icon images.
+ *
+ * Entries are immutable, edits are made by creating a new entry and replacing
+ * the old one in Storage. That makes them safe to share between threads, and
+ * lets the derived forms (decoded secret, URI, JSON, search keys) be computed
+ * once on first use and kept. The memoized fields are volatile and only ever
+ * written with values computed from the final fields, so another thread sees
+ * either null or a fully built value, and a racing first use at worst
+ * computes the same value twice.
+ *
+ * The secret may still be encrypted: entries read from the vault index
+ * only decrypt their secret when something first needs it. Copies of an
+ * entry that keep the secret share it, decrypted or not. Equality and the
+ * hash code only look at the index fields (label, issuer, type and code
+ * parameters), so list lookups never decrypt a secret; callers telling
+ * apart accounts that differ only in their secret compare it themselves.
  */
-public class AccountEntry {
-    private AccountEntry() {}
+public class AccountEntry implements OtpSource {
 
     /**
-     * The Id.
+     * The version of the binary layout written by writeTo().
      */
-    public int id = -1;
+    public static final int BINARY_VERSION = 1;
     /**
-     * The Visible.
+     * The version of the binary index layout written by writeIndexTo().
      */
-    public boolean visible = true;
+    public static final int INDEX_VERSION = 1;
+
+    /**
+     * The secret of an entry, read on first use.
+     */
+    public static final class Secret {
+        /**
+         * The source of a secret not read yet.
+         */
+        public interface Source {
+            /**
+             * Read the secret.
+             *
+             * @return the secret
+             * @throws Exception if the secret cannot be read
+             */
+            String read() throws Exception;
+        }
+
+        private String mValue;
+        private Source mSource;
+        private boolean mUnreadable = false;
+
+        Secret(String value) {
+            mValue = value != null ? value : "";
+            mSource = null;
+        }
 
-    private String label = "";
-    private String issuer = "";
-    private String secret = "";
+        /**
+         * Instantiates a secret read on first use.
+         *
+         * @param source the source
+         */
+        public Secret(Source source) {
+            mValue = null;
+            mSource = source;
+        }
+
+        /**
+         * Has the secret been read, or was it never encrypted?
+         *
+         * @return true if get() returns without reading
+         */
+        public synchronized boolean isRead() {
+            return mSource == null;
+        }
+
+        synchronized String get() {
+            if (mSource != null) {
+                try {
+                    mValue = mSource.read();
+                } catch (Exception e) {
+                    Notify.Error("Unreadable account secret",e);
+                    mValue = "";
+                    mUnreadable = true;
+                }
+                mSource = null;
+            }
+            return mValue;
+        }
+
+        /**
+         * Gets the secret to write it out again. A secret that could not be
+         * read fails here, where get() would hand out "" in its place.
+         *
+         * @return the secret
+         * @throws IOException if the secret could not be read
+         */
+        public synchronized String getChecked() throws IOException {
+            String value = get();
+            if (mUnreadable)
+                throw new IOException("unreadable account secret");
+            return value;
+        }
+    }
+
+    /**
+     * The Id.
+     */
+    public final int id;
+
+    private final String label;
+    private final String issuer;
+    private final Secret secret;
+    private final OtpType type;
+    private final long counter;
+    private final OtpAlgorithm algorithm;
+    private final int digits;
+    private final int period;
+
+    // memoized derived forms, volatile to publish them safely
+    private volatile byte[] decodedSecret = null;
+    private volatile Uri uri = null;
+    private volatile String json = null;
+    private volatile String searchLabel = null;
+    private volatile String searchIssuer = null;
+    private volatile int hash = 0;
+    private OtpGenerator generator = null;
+
+    private AccountEntry(int id, String label, String issuer, String secret,
+                         OtpType type, long counter,
+                         OtpAlgorithm algorithm, int digits, int period) {
+        this(id, label, issuer, new Secret(secret), type, counter, algorithm, digits, period);
+    }
+
+    private AccountEntry(int id, String label, String issuer, Secret secret,
+                         OtpType type, long counter,
+                         OtpAlgorithm algorithm, int digits, int period) {
+        this.id = id;
+        this.label = label != null ? label : "";
+        this.issuer = issuer != null ? issuer : "";
+        this.secret = secret;
+        this.type = type != null ? type : OtpType.TOTP;
+        this.counter = counter;
+        this.algorithm = algorithm != null ? algorithm : OtpAlgorithm.SHA1;
+        this.digits = digits;
+        this.period = period;
+    }
 
     /**
      * Gets label.
@@ -73,29 +205,149 @@ public class AccountEntry {
     public String getIssuer() {return issuer;}
 
     /**
-     * Gets secret.
+     * Gets secret, reading it if this is the first use.
      *
      * @return the secret
      */
-    public String getSecret() {return secret;}
+    public String getSecret() {return secret.get();}
+
+    /**
+     * Gets the secret holder, shared by the copies of this entry that keep
+     * the secret.
+     *
+     * @return the secret holder
+     */
+    public Secret getSecretHolder() {return secret;}
+
+    /**
+     * Gets type.
+     *
+     * @return the type
+     */
+    public OtpType getType() {return type;}
+
+    @Override
+    public boolean isCounterBased() {return type == OtpType.HOTP;}
+
+    /**
+     * Gets the HOTP counter, the counter of the code currently shown.
+     *
+     * @return the counter
+     */
+    @Override
+    public long getCounter() {return counter;}
+
+    /**
+     * Gets algorithm.
+     *
+     * @return the algorithm
+     */
+    public OtpAlgorithm getAlgorithm() {return algorithm;}
+
+    /**
+     * Gets the number of digits.
+     *
+     * @return the digits
+     */
+    public int getDigits() {return digits;}
+
+    /**
+     * Gets the period in seconds.
+     *
+     * @return the period
+     */
+    public int getPeriod() {return period;}
+
+    private boolean hasDefaultParameters() {
+        return algorithm == OtpAlgorithm.SHA1
+                && digits == OtpGenerator.DEFAULT_DIGITS
+                && period == OtpGenerator.DEFAULT_PERIOD;
+    }
 
     private byte[] getDecodedSecret() {
-        return new Base32().decode(getSecret());
+        byte[] decoded = decodedSecret;
+        if (decoded == null) {
+            decoded = new Base32().decode(getSecret());
+            decodedSecret = decoded;
+        }
+        return decoded;
+    }
+
+    /**
+     * Gets the prepared code generator, keying it on first use. The secret
+     * never changes after construction so the generator is kept for the
+     * lifetime of the entry.
+     *
+     * @return the generator or null if the secret is unusable
+     */
+    @Nullable
+    @Override
+    public synchronized OtpGenerator getGenerator() {
+        if (generator == null) {
+            try {
+                generator = OtpGenerator.Create(getDecodedSecret(), algorithm, digits, period);
+            } catch (Exception e) {
+                Notify.Debug("TOTP key failure: "+e.getMessage());
+            }
+        }
+        return generator;
+    }
+
+    /**
+     * Does the label or issuer contain the search text?
+     *
+     * @param text the search text, already lower-cased
+     * @return the boolean
+     */
+    public boolean matchesSearch(String text) {
+        String l = searchLabel;
+        if (l == null) {
+            l = label.toLowerCase();
+            searchLabel = l;
+        }
+        if (l.contains(text))
+            return true;
+        String i = searchIssuer;
+        if (i == null) {
+            i = issuer.toLowerCase();
+            searchIssuer = i;
+        }
+        return i.contains(text);
     }
 
 
     @Override
     public boolean equals (Object o) {
+        if (o == this)
+            return true;
         if (o != null && o instanceof AccountEntry) {
             AccountEntry other = (AccountEntry) o;
             if (other.getLabel().contentEquals(label)
                     && other.getIssuer().contentEquals(issuer)
-                    && other.getSecret().contentEquals(secret))
+                    && other.getType() == type
+                    && other.getAlgorithm() == algorithm
+                    && other.getDigits() == digits
+                    && other.getPeriod() == period)
                 return true;
         }
         return false;
     }
 
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            h = label.hashCode();
+            h = 31 * h + issuer.hashCode();
+            h = 31 * h + type.hashCode();
+            h = 31 * h + algorithm.hashCode();
+            h = 31 * h + digits;
+            h = 31 * h + period;
+            hash = h;
+        }
+        return h;
+    }
+
     /**
      * Parse json account entry.
      *
@@ -108,18 +360,118 @@ public class AccountEntry {
         Notify.Debug();
         try {
             JSONObject json = new JSONObject(in);
-            AccountEntry ae = new AccountEntry();
-            ae.id = idx;
-            try { ae.label  = json.getString("label");  } catch (JSONException ignore) {}
-            try { ae.issuer = json.getString("issuer"); } catch (JSONException ignore) {}
-            try { ae.secret = json.getString("secret"); } catch (JSONException ignore) {}
-            return ae;
+            String label = "";
+            String issuer = "";
+            String secret = "";
+            try { label  = json.getString("label");  } catch (JSONException ignore) {}
+            try { issuer = json.getString("issuer"); } catch (JSONException ignore) {}
+            try { secret = json.getString("secret"); } catch (JSONException ignore) {}
+            OtpType type = OtpType.Parse(json.optString("type", null));
+            int digits = json.optInt("digits", OtpGenerator.DEFAULT_DIGITS);
+            int period = json.optInt("period", OtpGenerator.DEFAULT_PERIOD);
+            if (!isSupported(digits, period)) {
+                Notify.Debug("Unsupported code parameters in JSON: digits="+digits+" period="+period);
+                return null;
+            }
+            return new AccountEntry(
+                    idx, label, issuer, secret,
+                    type, json.optLong("counter", 0),
+                    OtpAlgorithm.Parse(json.optString("algorithm", null)),
+                    digits, period
+            );
         } catch (JSONException e) {
             Notify.Debug("Failed to create account from parsed JSON",e);
         }
         return null;
     }
 
+    /**
+     * Read an account entry in the binary layout written by writeTo().
+     *
+     * @param idx the idx
+     * @param in  the in
+     * @return the account entry
+     * @throws IOException if the data is truncated or of a newer layout
+     */
+    public static AccountEntry ReadFrom(int idx, DataInput in) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version > BINARY_VERSION)
+            throw new IOException("unsupported account layout: "+version);
+        String label = in.readUTF();
+        String issuer = in.readUTF();
+        String secret = in.readUTF();
+        OtpType type = OtpType.Parse(in.readUTF());
+        long counter = in.readLong();
+        OtpAlgorithm algorithm = OtpAlgorithm.Parse(in.readUTF());
+        int digits = in.readUnsignedByte();
+        int period = in.readInt();
+        if (!isSupported(digits, period))
+            throw new IOException("unsupported code parameters: digits="+digits+" period="+period);
+        return new AccountEntry(idx, label, issuer, secret, type, counter, algorithm, digits, period);
+    }
+
+    /**
+     * Write the entry in its compact binary layout: a version byte, then
+     * every field, strings as length-prefixed UTF-8.
+     *
+     * @param out the out
+     * @throws IOException on write failures
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(BINARY_VERSION);
+        out.writeUTF(label);
+        out.writeUTF(issuer);
+        out.writeUTF(secret.getChecked());
+        out.writeUTF(type.getHost());
+        out.writeLong(counter);
+        out.writeUTF(algorithm.name());
+        out.writeByte(digits);
+        out.writeInt(period);
+    }
+
+    /**
+     * Read an entry from its index layout written by writeIndexTo(), with
+     * the secret kept elsewhere.
+     *
+     * @param idx    the idx
+     * @param in     the in
+     * @param secret the secret
+     * @return the account entry
+     * @throws IOException if the data is truncated or of a newer layout
+     */
+    public static AccountEntry ReadIndexFrom(int idx, DataInput in, Secret secret) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version > INDEX_VERSION)
+            throw new IOException("unsupported account index layout: "+version);
+        String label = in.readUTF();
+        String issuer = in.readUTF();
+        OtpType type = OtpType.Parse(in.readUTF());
+        long counter = in.readLong();
+        OtpAlgorithm algorithm = OtpAlgorithm.Parse(in.readUTF());
+        int digits = in.readUnsignedByte();
+        int period = in.readInt();
+        if (!isSupported(digits, period))
+            throw new IOException("unsupported code parameters: digits="+digits+" period="+period);
+        return new AccountEntry(idx, label, issuer, secret, type, counter, algorithm, digits, period);
+    }
+
+    /**
+     * Write every field but the secret, in the layout of writeTo().
+     *
+     * @param out the out
+     * @throws IOException on write failures
+     */
+    public void writeIndexTo(DataOutput out) throws IOException {
+        out.writeByte(INDEX_VERSION);
+        out.writeUTF(label);
+        out.writeUTF(issuer);
+        out.writeUTF(type.getHost());
+        out.writeLong(counter);
+        out.writeUTF(algorithm.name());
+        out.writeByte(digits);
+        out.writeInt(period);
+    }
+
     /**
      * Create account entry.
      *
@@ -129,25 +481,90 @@ public class AccountEntry {
      * @return the account entry
      */
     public static AccountEntry Create(String label, String issuer, String secret) {
-        AccountEntry ae = new AccountEntry();
-        ae.label = label;
-        ae.issuer = issuer;
-        ae.secret = secret;
-        return ae;
+        return new AccountEntry(
+                -1, label, issuer, secret,
+                OtpType.TOTP, 0,
+                OtpAlgorithm.SHA1,
+                OtpGenerator.DEFAULT_DIGITS,
+                OtpGenerator.DEFAULT_PERIOD
+        );
+    }
+
+    /**
+     * Create a copy of this entry with new details, keeping the otpauth
+     * parameters (type, counter, algorithm, digits, period).
+     *
+     * @param label  the label
+     * @param issuer the issuer
+     * @param secret the secret
+     * @return the account entry
+     */
+    public AccountEntry Edit(String label, String issuer, String secret) {
+        Secret kept = getSecret().equals(secret) ? this.secret : new Secret(secret);
+        return new AccountEntry(id, label, issuer, kept, type, counter, algorithm, digits, period);
+    }
+
+    /**
+     * Create a copy of this (HOTP) entry with another counter.
+     *
+     * @param counter the counter
+     * @return the account entry
+     */
+    public AccountEntry WithCounter(long counter) {
+        return new AccountEntry(id, label, issuer, secret, type, counter, algorithm, digits, period);
     }
 
     /**
      * Create account entry.
      *
      * @param uri the uri
-     * @return the account entry
+     * @return the account entry, null if its code parameters are unsupported
      */
+    @Nullable
     public static AccountEntry Create(Uri uri) {
-        AccountEntry ae = new AccountEntry();
-        ae.label = uri.getPath(); // uri decoded
-        ae.issuer = uri.getQueryParameter("issuer"); // uri decoded
-        ae.secret = uri.getQueryParameter("secret"); // base32 encoded
-        return ae;
+        int digits = parseInt(uri.getQueryParameter("digits"), OtpGenerator.DEFAULT_DIGITS);
+        int period = parseInt(uri.getQueryParameter("period"), OtpGenerator.DEFAULT_PERIOD);
+        if (!isSupported(digits, period)) {
+            Notify.Debug("Unsupported code parameters in URI: digits="+digits+" period="+period);
+            return null;
+        }
+        return new AccountEntry(
+                -1,
+                uri.getPath(), // uri decoded
+                uri.getQueryParameter("issuer"), // uri decoded
+                uri.getQueryParameter("secret"), // base32 encoded
+                OtpType.Parse(uri.getHost()),
+                parseLong(uri.getQueryParameter("counter"), 0),
+                OtpAlgorithm.Parse(uri.getQueryParameter("algorithm")),
+                digits, period
+        );
+    }
+
+    /**
+     * Are the code parameters ones a generator can be made for? Checked
+     * wherever entries are read, so an entry never holds a period or number
+     * of digits the code screens cannot handle.
+     */
+    private static boolean isSupported(int digits, int period) {
+        return OtpGenerator.IsValidDigits(digits) && OtpGenerator.IsValidPeriod(period);
+    }
+
+    private static long parseLong(String in, long fallback) {
+        if (in != null) {
+            try {
+                return Long.parseLong(in);
+            } catch (NumberFormatException ignore) {}
+        }
+        return fallback;
+    }
+
+    private static int parseInt(String in, int fallback) {
+        if (in != null) {
+            try {
+                return Integer.parseInt(in);
+            } catch (NumberFormatException ignore) {}
+        }
+        return fallback;
     }
 
     private JSONObject toJSON() {
@@ -155,7 +572,16 @@ public class AccountEntry {
         try {
             json.put("label", label);
             json.put("issuer", issuer);
-            json.put("secret", secret);
+            json.put("secret", getSecret());
+            if (isCounterBased()) {
+                json.put("type", type.getHost());
+                json.put("counter", counter);
+            }
+            if (!hasDefaultParameters()) {
+                json.put("algorithm", algorithm.name());
+                json.put("digits", digits);
+                json.put("period", period);
+            }
         } catch (JSONException e) {
             Notify.Debug("AccountEntry.toString(): "+e.getMessage());
         }
@@ -174,7 +600,12 @@ public class AccountEntry {
     }
 
     public String toString() {
-        return toJSON().toString();
+        String s = json;
+        if (s == null) {
+            s = toJSON().toString();
+            json = s;
+        }
+        return s;
     }
 
     /**
@@ -183,21 +614,57 @@ public class AccountEntry {
      * @return the uri
      */
     public Uri toUri() {
+        Uri u = uri;
+        if (u == null) {
+            u = makeUri(true);
+            uri = u;
+        }
+        return u;
+    }
+
+    /**
+     * Does the uri name this account, as toUri() would? Everything but the
+     * secret is compared first, so the secret is only read for a likely
+     * match.
+     *
+     * @param in the uri
+     * @return true if it names this account
+     */
+    public boolean matches(Uri in) {
+        // the memoized uri holds the secret, it is only made once that is read
+        Uri u = uri != null || secret.isRead() ? toUri() : makeUri(false);
+        if (u == null || in.getQueryParameter("secret") == null
+                || !u.getScheme().equals(in.getScheme())
+                || !u.getHost().equals(in.getHost())
+                || !u.getPath().equals(in.getPath()))
+            return false;
+        return getSecret().toUpperCase().equals(in.getQueryParameter("secret").toUpperCase());
+    }
+
+    private Uri makeUri(boolean withSecret) {
         try {
-            String uri = "otpauth://totp/";
+            StringBuilder uri = new StringBuilder("otpauth://");
+            uri.append(type.getHost()).append('/');
             if (!label.isEmpty()) {
-                uri += URLEncoder.encode(label, "UTF-8");
+                uri.append(URLEncoder.encode(label, "UTF-8"));
             }
             if (!issuer.isEmpty()) {
-                    uri += "?issuer=" + URLEncoder.encode(issuer, "UTF-8"); // uri encoded
-            }
-            if (uri.contains("?")) {
-                uri += "&";
+                uri.append("?issuer=").append(URLEncoder.encode(issuer, "UTF-8")); // uri encoded
+                uri.append('&');
             } else {
-                uri += "?";
+                uri.append('?');
+            }
+            if (withSecret)
+                uri.append("secret=").append(getSecret());
+            if (isCounterBased()) {
+                uri.append("&counter=").append(counter);
+            }
+            if (!hasDefaultParameters()) {
+                uri.append("&algorithm=").append(algorithm.name());
+                uri.append("&digits=").append(digits);
+                uri.append("&period=").append(period);
             }
-            uri += "secret=" + secret;
-            return Uri.parse(uri);
+            return Uri.parse(uri.toString());
         } catch (Exception e) {
             Notify.Debug("Exception: "+e.getMessage());
             e.printStackTrace();
@@ -206,47 +673,61 @@ public class AccountEntry {
     }
 
     /**
-     * Totp string string.
+     * Verify a submitted code at the current time. Time-based accounts
+     * accept the steps within the window on either side of the current one;
+     * counter-based accounts look ahead from the stored counter by up to
+     * the window (resynchronisation).
      *
+     * @param code   the submitted code, spaces are ignored
+     * @param window the number of steps (or counters) accepted
+     * @return the matching step or counter, OtpGenerator.NO_MATCH otherwise
+     */
+    public long verify(CharSequence code, int window) {
+        return verify(code, OtpClock.getInstance().read(), window);
+    }
+
+    /**
+     * Verify a submitted code at the given time. The difference between the
+     * returned step and getGenerator().getStep(millis) is the drift of the
+     * submitting clock.
+     *
+     * @param code   the submitted code, spaces are ignored
+     * @param millis the time in milliseconds since the epoch
+     * @param window the number of steps (or counters) accepted
+     * @return the matching step or counter, OtpGenerator.NO_MATCH otherwise
+     */
+    public long verify(CharSequence code, long millis, int window) {
+        OtpGenerator g = getGenerator();
+        int value = OtpCode.Parse(code, digits);
+        if (g == null || value < 0 || window < 0)
+            return OtpGenerator.NO_MATCH;
+        if (isCounterBased())
+            return g.verify(value, counter, window + 1);
+        return g.verifyAt(value, millis, window);
+    }
+
+    /**
+     * Format a code of this account, zero-padded to its number of digits.
+     *
+     * @param code the code
      * @return the string
      */
-    public String totpString() {
-        int value = 0;
-        try {
-            value = generate(getDecodedSecret(), System.currentTimeMillis() / 1000);
-        } catch (Exception e) {
-            Notify.Debug("TOTP failure: "+e.getMessage());
-            e.printStackTrace();
-        }
-        return String.format(Locale.CANADA,"%06d", value);
+    public String formatCode(int code) {
+        char[] chars = new char[OtpCode.MAX_LENGTH];
+        return new String(chars, 0, OtpCode.Render(code, digits, false, chars, 0));
     }
 
-    private static int generate(byte[] key, long t)
-    {
-        int r = 0;
-        try {
-            t /= 30;
-            byte[] data = new byte[8];
-            long value = t;
-            for (int i = 8; i-- > 0; value >>>= 8) {
-                data[i] = (byte) value;
-            }
-            SecretKeySpec signKey = new SecretKeySpec(key, "HmacSHA1");
-            Mac mac = Mac.getInstance("HmacSHA1");
-            mac.init(signKey);
-            byte[] hash = mac.doFinal(data);
-            int offset = hash[20 - 1] & 0xF;
-            long truncatedHash = 0;
-            for (int i = 0; i < 4; ++i) {
-                truncatedHash <<= 8;
-                truncatedHash |= (hash[offset + i] & 0xFF);
-            }
-            truncatedHash &= 0x7FFFFFFF;
-            truncatedHash %= Math.pow(10, 6);
-            r  = (int) truncatedHash;
-        } catch(Exception ignore) {
-        }
-        return r;
+    /**
+     * Render a code of this account into a reusable buffer, without
+     * allocating.
+     *
+     * @param code    the code
+     * @param grouped split the digits in two groups
+     * @param out     the buffer
+     * @return true if the rendered text changed
+     */
+    public boolean renderCode(int code, boolean grouped, OtpCode out) {
+        return out.set(code, digits, grouped);
     }
 
     /**
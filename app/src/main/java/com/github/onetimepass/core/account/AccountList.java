@@ -166,7 +166,7 @@ public class AccountList
             text = text.toLowerCase();
             for (int i=0; i < mAccountEntries.size(); i++) {
                 AccountEntry ae = mAccountEntries.get(i);
-                if (ae.getLabel().toLowerCase().contains(text) || ae.getIssuer().toLowerCase().contains(text)) {
+                if (ae.matchesSearch(text)) {
                     mVisibleEntries.add(ae);
                 }
             }
@@ -15,6 +15,10 @@ package com.github.onetimepass.core.control;
  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
 */
 
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.graphics.Rect;
 import android.net.Uri;
@@ -37,6 +41,7 @@ import com.github.onetimepass.core.Notify;
 import com.github.onetimepass.core.Storage;
 import com.github.onetimepass.core.SupportBar;
 import com.github.onetimepass.core.Utility;
+import com.github.onetimepass.core.otp.OtpClock;
 import com.github.onetimepass.core.screen.Screen;
 import com.rustamg.filedialogs.FileDialog;
 
@@ -60,7 +65,6 @@ abstract public class Controller
 
     private List<Screen> mScreens = new ArrayList<Screen>();
     private List<ControlAction> mControlActions;
-    private Storage mStorage;
     private SupportBar mSupportBar;
     private ProgressBar mIdleTimerBar;
     private View mFragmentMain;
@@ -70,6 +74,13 @@ abstract public class Controller
     private Screen mWaitingForFileSelection = null;
     private boolean mAlive = false;
     private String mNextTransitionOverride = null;
+    private final BroadcastReceiver mTimeChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Notify.Debug();
+            OtpClock.getInstance().onTimeChanged();
+        }
+    };
 
     /*************************************************************************
      * GETTERS AND SETTERS
@@ -105,12 +116,12 @@ abstract public class Controller
     }
 
     /**
-     * Gets storage.
+     * Gets storage, the active vault.
      *
      * @return the storage
      */
     final protected Storage getStorage() {
-        return mStorage;
+        return Storage.getInstance(this);
     }
 
     /**
@@ -215,6 +226,7 @@ abstract public class Controller
     final public void clearAuthCache() {
         Notify.Debug();
         mPassPhraseCache = null;
+        Storage.ForgetKeys();
     }
 
 
@@ -301,7 +313,7 @@ abstract public class Controller
     }
 
     public void onIdleTimerTick(long millisUntilFinished) {
-        if (!mStorage.IsOpen()) {
+        if (!getStorage().IsOpen()) {
             Notify.Debug();
             mIdleTimer.StopTimer();
             return;
@@ -310,11 +322,11 @@ abstract public class Controller
     }
 
     public void onIdleTimerFinish() {
-        if (mStorage != null && mStorage.StoragePathExists()) {
+        if (getStorage().StoragePathExists()) {
             Notify.Debug();
-            if (mStorage.IsOpen())
-                mStorage.Close();
+            Storage.CloseAll(this, null);
             mPassPhraseCache = null;
+            Storage.ForgetKeys();
             popBackStack();
             if (mIdleTimer.getExitOnFinish()) {
                 try {
@@ -450,8 +462,8 @@ abstract public class Controller
         setSupportActionBar(tbar);
 
         mSupportBar = SupportBar.newInstance(this,findViewById(R.id.dialog_frame));
-        mStorage = Storage.getInstance(this);
         mIdleTimer = new ControllerIdleTimer(this);
+        registerReceiver(mTimeChangedReceiver, new IntentFilter(Intent.ACTION_TIME_CHANGED));
 
         final View root_view = findViewById(R.id.root_view);
         if (root_view != null) {
@@ -470,6 +482,12 @@ abstract public class Controller
         Notify.Debug("super oncreate completed");
     }
 
+    protected void onDestroy() {
+        Notify.Debug();
+        unregisterReceiver(mTimeChangedReceiver);
+        super.onDestroy();
+    }
+
     public void onResume() {
         super.onResume();
         Notify.Debug();
@@ -479,7 +497,7 @@ abstract public class Controller
         mIdleTimer = new ControllerIdleTimer(this);
         Notify.Debug("created idle timeout timer");
         mIdleTimer.setExitOnFinish(false);
-        if (mStorage.IsOpen())
+        if (getStorage().IsOpen())
             mIdleTimer.RestartTimer();
         else
             mIdleTimer.StopTimer();
@@ -488,10 +506,11 @@ abstract public class Controller
     public void onPause() {
         super.onPause();
         Notify.Debug();
+        Storage.FlushAll();
         mIdleTimer.cancel();
         mIdleTimer = new ControllerIdleTimer(this, Constants.IDLE_EXPIRE);
         Notify.Debug("created idle expire timer");
-        if (mStorage.IsOpen())
+        if (getStorage().IsOpen())
             mIdleTimer.StartTimer();
         mAlive = false;
         mIdleTimer.setExitOnFinish(true);
@@ -554,8 +573,8 @@ abstract public class Controller
      */
     protected void proceedToDefaultFragment() {
         Notify.Debug();
-        if (mStorage.StoragePathExists()) {
-            if (mStorage.IsOpen()) {
+        if (getStorage().StoragePathExists()) {
+            if (getStorage().IsOpen()) {
                 if (mCameraResultWanted && mCameraResultScreen != null) {
                     String to = mCameraResultScreen;
                     mCameraResultScreen = null;
@@ -0,0 +1,65 @@
+package com.github.onetimepass.core.otp;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+/**
+ * The HMAC algorithms allowed by the otpauth "algorithm" parameter.
+ */
+public enum OtpAlgorithm {
+    /**
+     * HMAC-SHA1, the default.
+     */
+    SHA1("HmacSHA1", 20),
+    /**
+     * HMAC-SHA256.
+     */
+    SHA256("HmacSHA256", 32),
+    /**
+     * HMAC-SHA512.
+     */
+    SHA512("HmacSHA512", 64);
+
+    /**
+     * The JCA Mac algorithm name.
+     */
+    public final String mac;
+    /**
+     * The hash length in bytes.
+     */
+    public final int length;
+
+    OtpAlgorithm(String mac, int length) {
+        this.mac = mac;
+        this.length = length;
+    }
+
+    /**
+     * Parse the otpauth "algorithm" parameter value.
+     *
+     * @param in the parameter value, may be null
+     * @return the algorithm, SHA1 if missing or unknown
+     */
+    public static OtpAlgorithm Parse(String in) {
+        if (in != null) {
+            for (OtpAlgorithm a : values()) {
+                if (a.name().equalsIgnoreCase(in))
+                    return a;
+            }
+        }
+        return SHA1;
+    }
+}
@@ -0,0 +1,135 @@
+package com.github.onetimepass.core.otp;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Generates the codes of a whole list of accounts for a single time step.
+ *
+ * The counter is encoded once and shared (read-only) by every generator and
+ * the codes are written into a primitive array indexed by list position.
+ * Large lists are split across a fork/join pool.
+ *
+ * Steps are in the default 30 second period. Generators with another period
+ * compute their own step from the start of the given one, and counter-based
+ * sources use their own counter.
+ */
+public class OtpBatch {
+    /**
+     * Code written for entries without a usable generator.
+     */
+    public static final int INVALID = -1;
+
+    /**
+     * Lists at or below this size are generated on the calling thread, and
+     * it is the size of the slices handed to each fork/join task.
+     */
+    static final int PARALLEL_THRESHOLD = 512;
+
+    private static ForkJoinPool mPool = null;
+
+    private OtpBatch() {}
+
+    // ForkJoinPool.commonPool() needs API 24, so keep our own
+    private static synchronized ForkJoinPool getPool() {
+        if (mPool == null)
+            mPool = new ForkJoinPool();
+        return mPool;
+    }
+
+    /**
+     * Generate the codes for every source for the given time step.
+     *
+     * @param sources the sources, must not change during the call
+     * @param step    the default-period time step
+     * @return the codes, indexed by list position
+     */
+    public static int[] Generate(List<? extends OtpSource> sources, long step) {
+        int[] out = new int[sources.size()];
+        Generate(sources, step, out);
+        return out;
+    }
+
+    /**
+     * Generate the codes for every source for the given time step into a
+     * caller-supplied array.
+     *
+     * @param sources the sources, must not change during the call
+     * @param step    the default-period time step
+     * @param out     the output, at least sources.size() long
+     */
+    public static void Generate(List<? extends OtpSource> sources, long step, int[] out) {
+        byte[] counter = new byte[8];
+        OtpGenerator.EncodeCounter(step, counter);
+        int size = sources.size();
+        if (size <= PARALLEL_THRESHOLD) {
+            generateRange(sources, step, counter, out, 0, size);
+        } else {
+            getPool().invoke(new Slice(sources, step, counter, out, 0, size));
+        }
+    }
+
+    private static void generateRange(List<? extends OtpSource> sources, long step, byte[] counter, int[] out, int from, int to) {
+        for (int i = from; i < to; i++) {
+            OtpSource source = sources.get(i);
+            OtpGenerator g = source != null ? source.getGenerator() : null;
+            if (g == null)
+                out[i] = INVALID;
+            else if (source.isCounterBased())
+                out[i] = g.generate(source.getCounter());
+            else if (g.getPeriod() == OtpGenerator.DEFAULT_PERIOD)
+                out[i] = g.generate(counter);
+            else
+                out[i] = g.generateAt(step * OtpGenerator.DEFAULT_PERIOD * 1000L);
+        }
+    }
+
+    private static class Slice extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<? extends OtpSource> mSources;
+        private final long mStep;
+        private final byte[] mCounter;
+        private final int[] mOut;
+        private final int mFrom;
+        private final int mTo;
+
+        Slice(List<? extends OtpSource> sources, long step, byte[] counter, int[] out, int from, int to) {
+            mSources = sources;
+            mStep = step;
+            mCounter = counter;
+            mOut = out;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= PARALLEL_THRESHOLD) {
+                generateRange(mSources, mStep, mCounter, mOut, mFrom, mTo);
+                return;
+            }
+            int mid = (mFrom + mTo) >>> 1;
+            invokeAll(
+                    new Slice(mSources, mStep, mCounter, mOut, mFrom, mid),
+                    new Slice(mSources, mStep, mCounter, mOut, mid, mTo)
+            );
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.github.onetimepass.core.otp;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Double-buffered cache of codes keyed by (account, time step).
+ *
+ * A background thread computes the codes of the upcoming window a few
+ * seconds before the boundary. Readers asking for the new step swap the
+ * prepared window in, so nothing is generated on the reader's thread at
+ * the boundary. Lookups that miss (new accounts, clock jumps) fall back to
+ * generating the single code directly, as do accounts whose period is not
+ * the default one and counter-based (HOTP) accounts, since their codes do
+ * not follow the cached windows. Time comes from the OtpClock; when the wall
+ * clock changes the cache is dropped and the prefetch rescheduled.
+ */
+public class OtpCache implements OtpClock.Listener {
+    /**
+     * The time step length in milliseconds.
+     */
+    public static final long PERIOD_MS = OtpGenerator.DEFAULT_PERIOD * 1000;
+    /**
+     * How long before the boundary the next window is computed.
+     */
+    static final long PREFETCH_MS = 3 * 1000;
+
+    /**
+     * The interface supplying the accounts to prefetch.
+     */
+    public interface Sources {
+        /**
+         * Gets a stable snapshot of the sources to prefetch.
+         *
+         * @return the sources
+         */
+        List<? extends OtpSource> getSources();
+    }
+
+    private static class Window {
+        final long step;
+        final IdentityHashMap<OtpSource,Integer> index;
+        final int[] codes;
+
+        Window(long step, List<? extends OtpSource> sources) {
+            this.step = step;
+            this.index = new IdentityHashMap<OtpSource,Integer>(sources.size());
+            for (int i = 0; i < sources.size(); i++) {
+                index.put(sources.get(i), i);
+            }
+            this.codes = OtpBatch.Generate(sources, step);
+        }
+    }
+
+    private final Sources mSources;
+    private final OtpClock mClock;
+    private ScheduledExecutorService mExecutor = null;
+    private ScheduledFuture<?> mPrefetch = null;
+    private volatile Window mCurrent = null;
+    private volatile Window mNext = null;
+
+    /**
+     * Instantiates a new code cache.
+     *
+     * @param sources the sources
+     */
+    public OtpCache(Sources sources) {
+        this(sources, OtpClock.getInstance());
+    }
+
+    /**
+     * Instantiates a new code cache on the given clock.
+     *
+     * @param sources the sources
+     * @param clock   the clock
+     */
+    public OtpCache(Sources sources, OtpClock clock) {
+        mSources = sources;
+        mClock = clock;
+    }
+
+    /**
+     * Gets the code of the source for the clock's current time step.
+     *
+     * @param source the source
+     * @return the code or OtpBatch.INVALID
+     */
+    public int getCode(OtpSource source) {
+        long now = mClock.now();
+        OtpGenerator g = source.getGenerator();
+        if (g != null && !source.isCounterBased() && g.getPeriod() != OtpGenerator.DEFAULT_PERIOD)
+            return g.generateAt(now);
+        return getCode(source, now / PERIOD_MS);
+    }
+
+    /**
+     * Gets the code of the source for the given time step.
+     *
+     * @param source the source
+     * @param step   the step
+     * @return the code or OtpBatch.INVALID
+     */
+    public int getCode(OtpSource source, long step) {
+        OtpGenerator g = source.getGenerator();
+        if (g == null)
+            return OtpBatch.INVALID;
+        if (source.isCounterBased())
+            return g.generate(source.getCounter());
+        if (g.getPeriod() != OtpGenerator.DEFAULT_PERIOD)
+            return g.generateAt(step * PERIOD_MS);
+        Window w = mCurrent;
+        if (w == null || w.step != step) {
+            Window next = mNext;
+            if (next != null && next.step == step) {
+                // swap in the prefetched window
+                mCurrent = next;
+                mNext = null;
+                w = next;
+            }
+        }
+        if (w != null && w.step == step) {
+            Integer i = w.index.get(source);
+            if (i != null)
+                return w.codes[i];
+        }
+        return g.generate(step);
+    }
+
+    /**
+     * Start prefetching. Computes the current window straight away and then
+     * the next one ahead of every boundary.
+     */
+    public synchronized void start() {
+        if (mExecutor != null)
+            return;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "OtpCache");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        mClock.addListener(this);
+        prefetchCurrent();
+    }
+
+    private synchronized void prefetchCurrent() {
+        if (mExecutor == null)
+            return;
+        if (mPrefetch != null)
+            mPrefetch.cancel(false);
+        mPrefetch = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                long step = mClock.read() / PERIOD_MS;
+                try {
+                    mCurrent = new Window(step, mSources.getSources());
+                } finally {
+                    schedulePrefetch(step);
+                }
+            }
+        }, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop prefetching and drop every cached code.
+     */
+    public synchronized void stop() {
+        mClock.removeListener(this);
+        mPrefetch = null;
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+        invalidate();
+    }
+
+    /**
+     * Drop every cached code, the next lookups generate directly until the
+     * next prefetch.
+     */
+    public void invalidate() {
+        mCurrent = null;
+        mNext = null;
+    }
+
+    @Override
+    public void onTimeChanged() {
+        invalidate();
+        prefetchCurrent();
+    }
+
+    private synchronized void schedulePrefetch(long after) {
+        if (mExecutor == null)
+            return;
+        long now = mClock.read();
+        final long next = Math.max(after + 1, now / PERIOD_MS + 1);
+        long delay = Math.max(0, next * PERIOD_MS - PREFETCH_MS - now);
+        mPrefetch = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mNext = new Window(next, mSources.getSources());
+                } finally {
+                    schedulePrefetch(next);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+}
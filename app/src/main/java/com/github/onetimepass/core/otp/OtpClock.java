@@ -0,0 +1,211 @@
+package com.github.onetimepass.core.otp;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The time-step service.
+ *
+ * Every code, countdown and clipboard alarm derives its time from here so
+ * they can never disagree across a boundary. Refresh loops call tick() once
+ * per frame and everything done during that frame reads the same instant
+ * through now(). The wall clock source can be swapped (for tests) and a
+ * user offset applied to correct for a skewed device clock. Listeners are
+ * told when the wall clock is changed under us (ACTION_TIME_CHANGED).
+ */
+public class OtpClock {
+
+    /**
+     * The wall clock source.
+     */
+    public interface Source {
+        /**
+         * Gets the current time.
+         *
+         * @return milliseconds since the epoch
+         */
+        long currentTimeMillis();
+    }
+
+    /**
+     * The listener for wall clock changes.
+     */
+    public interface Listener {
+        /**
+         * On time changed.
+         */
+        void onTimeChanged();
+    }
+
+    /**
+     * The system wall clock.
+     */
+    public static final Source SYSTEM = new Source() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private static OtpClock mInstance;
+
+    private volatile Source mSource = SYSTEM;
+    private volatile long mOffset = 0;
+    private volatile long mNow = 0;
+    private final List<Listener> mListeners = new ArrayList<Listener>();
+
+    /**
+     * Gets instance.
+     *
+     * @return the instance
+     */
+    public static synchronized OtpClock getInstance() {
+        if (mInstance == null)
+            mInstance = new OtpClock();
+        return mInstance;
+    }
+
+    /**
+     * Sets the wall clock source.
+     *
+     * @param source the source
+     */
+    public void setSource(Source source) {
+        mSource = source != null ? source : SYSTEM;
+        onTimeChanged();
+    }
+
+    /**
+     * Sets the user offset added to the wall clock (skew correction).
+     *
+     * @param offset the offset in milliseconds
+     */
+    public void setOffset(long offset) {
+        mOffset = offset;
+        onTimeChanged();
+    }
+
+    /**
+     * Gets the user offset.
+     *
+     * @return the offset in milliseconds
+     */
+    public long getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * Read the (corrected) wall clock without remembering it, for
+     * background work that is not part of a frame.
+     *
+     * @return milliseconds since the epoch
+     */
+    public long read() {
+        return mSource.currentTimeMillis() + mOffset;
+    }
+
+    /**
+     * Read the (corrected) wall clock once for this frame.
+     *
+     * @return milliseconds since the epoch
+     */
+    public long tick() {
+        long now = read();
+        mNow = now;
+        return now;
+    }
+
+    /**
+     * Gets the time of the last tick, ticking first if there never was one.
+     *
+     * @return milliseconds since the epoch
+     */
+    public long now() {
+        long now = mNow;
+        return now != 0 ? now : tick();
+    }
+
+    /**
+     * Gets the current default-period time step.
+     *
+     * @return the step
+     */
+    public long getStep() {
+        return getStep(OtpGenerator.DEFAULT_PERIOD);
+    }
+
+    /**
+     * Gets the current time step.
+     *
+     * @param period the period in seconds
+     * @return the step
+     */
+    public long getStep(int period) {
+        return now() / (period * 1000L);
+    }
+
+    /**
+     * Gets the milliseconds until the next time step.
+     *
+     * @param period the period in seconds
+     * @return the milliseconds
+     */
+    public long getMillisUntilNextStep(int period) {
+        long length = period * 1000L;
+        return length - now() % length;
+    }
+
+    /**
+     * Add listener.
+     *
+     * @param listener the listener
+     */
+    public void addListener(Listener listener) {
+        synchronized (mListeners) {
+            if (!mListeners.contains(listener))
+                mListeners.add(listener);
+        }
+    }
+
+    /**
+     * Remove listener.
+     *
+     * @param listener the listener
+     */
+    public void removeListener(Listener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    /**
+     * The wall clock changed (set by the user or network time): re-read it
+     * and tell the listeners.
+     */
+    public void onTimeChanged() {
+        tick();
+        Listener[] listeners;
+        synchronized (mListeners) {
+            listeners = mListeners.toArray(new Listener[0]);
+        }
+        for (Listener l : listeners) {
+            l.onTimeChanged();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.github.onetimepass.core.otp;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+/**
+ * Allocation-free rendering of codes.
+ *
+ * An OtpCode is a reusable, mutable CharSequence backed by a fixed char
+ * array. Rendering writes the zero-padded digits (optionally grouped, like
+ * "123 456") straight into that array, so a refresh loop can render every
+ * tick without producing garbage. TextViews can display the array directly
+ * through setText(getChars(), 0, length()).
+ */
+public final class OtpCode implements CharSequence {
+    /**
+     * The largest rendered length, MAX_DIGITS plus the group separator.
+     */
+    public static final int MAX_LENGTH = OtpGenerator.MAX_DIGITS + 1;
+
+    private final char[] mChars = new char[MAX_LENGTH];
+    private int mLength = 0;
+    private int mCode = -1;
+    private int mDigits = 0;
+    private boolean mGrouped = false;
+
+    /**
+     * Render the code into this buffer.
+     *
+     * @param code    the code, negative codes render as zeros
+     * @param digits  the number of digits
+     * @param grouped split the digits in two groups separated by a space
+     * @return true if the rendered text changed
+     */
+    public boolean set(int code, int digits, boolean grouped) {
+        if (code == mCode && digits == mDigits && grouped == mGrouped)
+            return false;
+        mCode = code;
+        mDigits = digits;
+        mGrouped = grouped;
+        mLength = Render(code, digits, grouped, mChars, 0);
+        return true;
+    }
+
+    /**
+     * Forget the rendered code, the next set() always reports a change.
+     */
+    public void clear() {
+        mLength = 0;
+        mCode = -1;
+        mDigits = 0;
+    }
+
+    /**
+     * Gets the backing array. Only the first length() chars are valid and
+     * the contents change on the next set().
+     *
+     * @return the chars
+     */
+    public char[] getChars() {
+        return mChars;
+    }
+
+    /**
+     * Render a code into a caller-supplied array.
+     *
+     * @param code    the code, negative codes render as zeros
+     * @param digits  the number of digits
+     * @param grouped split the digits in two groups separated by a space
+     * @param out     the output array
+     * @param offset  the offset in the output array
+     * @return the number of chars written
+     */
+    public static int Render(int code, int digits, boolean grouped, char[] out, int offset) {
+        if (code < 0)
+            code = 0;
+        // first group is the shorter one for odd lengths ("123 4567")
+        int split = grouped ? digits / 2 : -1;
+        int length = grouped ? digits + 1 : digits;
+        int pos = offset + length;
+        for (int i = digits; i-- > 0; ) {
+            if (i == split - 1)
+                out[--pos] = ' ';
+            out[--pos] = (char) ('0' + code % 10);
+            code /= 10;
+        }
+        return length;
+    }
+
+    /**
+     * Parse a submitted code, the inverse of Render. Spaces (grouping) are
+     * ignored, anything else but digits makes the code invalid.
+     *
+     * @param text   the text
+     * @param digits the expected number of digits
+     * @return the code or -1 if invalid
+     */
+    public static int Parse(CharSequence text, int digits) {
+        if (text == null)
+            return -1;
+        int code = 0;
+        int count = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == ' ')
+                continue;
+            if (c < '0' || c > '9' || ++count > digits)
+                return -1;
+            code = code * 10 + (c - '0');
+        }
+        return count == digits ? code : -1;
+    }
+
+    @Override
+    public int length() {
+        return mLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= mLength)
+            throw new IndexOutOfBoundsException();
+        return mChars[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return new String(mChars, 0, mLength);
+    }
+}
@@ -0,0 +1,300 @@
+package com.github.onetimepass.core.otp;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A prepared, keyed HMAC context for generating one-time passwords.
+ *
+ * The key schedule is done once, when the generator is created. Every code
+ * generated afterwards reuses the same HMAC state along with the counter and
+ * hash buffers, so no allocations are made per time step. SHA1 accounts use
+ * the in-house midstate HMAC (Sha1Hmac); the other algorithms reuse a single
+ * initialized JCA Mac.
+ *
+ * Each generator is bound to one algorithm/digits/period combination at
+ * creation: the truncation offset position and the power-of-ten modulus are
+ * final fields looked up from integer tables, so no per-code branching or
+ * floating point is involved whatever the combination.
+ */
+public class OtpGenerator {
+    /**
+     * The default number of digits.
+     */
+    public static final int DEFAULT_DIGITS = 6;
+    /**
+     * The default period in seconds.
+     */
+    public static final int DEFAULT_PERIOD = 30;
+    /**
+     * The smallest supported number of digits.
+     */
+    public static final int MIN_DIGITS = 6;
+    /**
+     * The largest supported number of digits.
+     */
+    public static final int MAX_DIGITS = 8;
+    /**
+     * Returned by the verify methods when no step matched.
+     */
+    public static final long NO_MATCH = -1;
+
+    private static final int[] POW10 = {
+            1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000, 1000000000
+    };
+
+    /**
+     * A keyed HMAC over the 8-byte counter message.
+     */
+    interface Hmac {
+        /**
+         * Gets the hash length in bytes.
+         *
+         * @return the length
+         */
+        int length();
+
+        /**
+         * Compute the HMAC of the 8-byte counter.
+         *
+         * @param counter the counter
+         * @param out     the output, at least length() bytes
+         */
+        void mac(byte[] counter, byte[] out);
+    }
+
+    private static final class JcaHmac implements Hmac {
+        private final Mac mMac;
+
+        JcaHmac(Mac mac) {
+            mMac = mac;
+        }
+
+        @Override
+        public int length() {
+            return mMac.getMacLength();
+        }
+
+        @Override
+        public void mac(byte[] counter, byte[] out) {
+            mMac.update(counter, 0, 8);
+            try {
+                mMac.doFinal(out, 0);
+            } catch (ShortBufferException e) {
+                // the hash buffer is sized from the algorithm itself
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private final Hmac mHmac;
+    private final byte[] mCounter = new byte[8];
+    private final byte[] mHash;
+    private final int mOffsetIndex;
+    private final int mModulus;
+    private final int mDigits;
+    private final int mPeriod;
+
+    private OtpGenerator(Hmac hmac, OtpAlgorithm algorithm, int digits, int period) {
+        mHmac = hmac;
+        mHash = new byte[algorithm.length];
+        mOffsetIndex = algorithm.length - 1;
+        mModulus = POW10[digits];
+        mDigits = digits;
+        mPeriod = period;
+    }
+
+    /**
+     * Create a default (SHA1, 6 digits, 30 seconds) generator keyed with the
+     * given (already decoded) secret.
+     *
+     * @param key the decoded secret
+     * @return the otp generator
+     * @throws GeneralSecurityException if the key cannot be used
+     */
+    public static OtpGenerator Create(byte[] key) throws GeneralSecurityException {
+        return Create(key, OtpAlgorithm.SHA1, DEFAULT_DIGITS, DEFAULT_PERIOD);
+    }
+
+    /**
+     * Create a generator keyed with the given (already decoded) secret.
+     *
+     * @param key       the decoded secret
+     * @param algorithm the algorithm
+     * @param digits    the number of digits, MIN_DIGITS to MAX_DIGITS
+     * @param period    the period in seconds
+     * @return the otp generator
+     * @throws GeneralSecurityException if the key cannot be used
+     */
+    public static OtpGenerator Create(byte[] key, OtpAlgorithm algorithm, int digits, int period) throws GeneralSecurityException {
+        if (!IsValidDigits(digits))
+            throw new GeneralSecurityException("unsupported number of digits: "+digits);
+        if (!IsValidPeriod(period))
+            throw new GeneralSecurityException("unsupported period: "+period);
+        if (key.length == 0)
+            throw new GeneralSecurityException("empty key");
+        if (algorithm == OtpAlgorithm.SHA1)
+            return new OtpGenerator(new Sha1Hmac(key), algorithm, digits, period);
+        Mac mac = Mac.getInstance(algorithm.mac);
+        mac.init(new SecretKeySpec(key, algorithm.mac));
+        return new OtpGenerator(new JcaHmac(mac), algorithm, digits, period);
+    }
+
+    /**
+     * Is the number of digits supported?
+     *
+     * @param digits the number of digits
+     * @return the boolean
+     */
+    public static boolean IsValidDigits(int digits) {
+        return digits >= MIN_DIGITS && digits <= MAX_DIGITS;
+    }
+
+    /**
+     * Is the period supported?
+     *
+     * @param period the period in seconds
+     * @return the boolean
+     */
+    public static boolean IsValidPeriod(int period) {
+        return period > 0;
+    }
+
+    /**
+     * Gets the number of digits.
+     *
+     * @return the digits
+     */
+    public int getDigits() {
+        return mDigits;
+    }
+
+    /**
+     * Gets the period in seconds.
+     *
+     * @return the period
+     */
+    public int getPeriod() {
+        return mPeriod;
+    }
+
+    /**
+     * Gets the time step (counter) for the given wall clock time.
+     *
+     * @param millis the time in milliseconds since the epoch
+     * @return the step
+     */
+    public long getStep(long millis) {
+        return millis / 1000 / mPeriod;
+    }
+
+    /**
+     * Generate the code for the time step containing the given time.
+     *
+     * @param millis the time in milliseconds since the epoch
+     * @return the code
+     */
+    public int generateAt(long millis) {
+        return generate(getStep(millis));
+    }
+
+    /**
+     * Generate the code for the given counter (time step).
+     *
+     * @param counter the counter
+     * @return the code
+     */
+    public synchronized int generate(long counter) {
+        EncodeCounter(counter, mCounter);
+        return generate(mCounter);
+    }
+
+    /**
+     * Generate the code for an already encoded counter. The counter bytes
+     * are only read, so one encoding can be shared across many generators.
+     *
+     * @param counter the big-endian 8-byte counter
+     * @return the code
+     */
+    public synchronized int generate(byte[] counter) {
+        mHmac.mac(counter, mHash);
+        int offset = mHash[mOffsetIndex] & 0xF;
+        int binary = ((mHash[offset] & 0x7F) << 24)
+                | ((mHash[offset + 1] & 0xFF) << 16)
+                | ((mHash[offset + 2] & 0xFF) << 8)
+                | (mHash[offset + 3] & 0xFF);
+        return binary % mModulus;
+    }
+
+    /**
+     * Verify a code against the time steps around the one containing the
+     * given time.
+     *
+     * @param code   the submitted code
+     * @param millis the time in milliseconds since the epoch
+     * @param window the number of steps accepted on either side
+     * @return the matching step or NO_MATCH
+     */
+    public long verifyAt(int code, long millis, int window) {
+        long step = getStep(millis);
+        long first = Math.max(0, step - window);
+        return verify(code, first, (int) (step + window - first + 1));
+    }
+
+    /**
+     * Verify a code against a range of counters (time steps).
+     *
+     * The whole range is always computed with the same keyed HMAC state and
+     * every candidate is compared without branching on the result, so the
+     * time taken does not reveal whether or where the code matched. If
+     * several counters match, the last one is reported.
+     *
+     * @param code  the submitted code
+     * @param first the first counter
+     * @param count the number of counters
+     * @return the matching counter or NO_MATCH
+     */
+    public synchronized long verify(int code, long first, int count) {
+        long matched = NO_MATCH;
+        for (int i = 0; i < count; i++) {
+            long counter = first + i;
+            EncodeCounter(counter, mCounter);
+            int diff = generate(mCounter) ^ code;
+            // all ones when diff == 0, all zeros otherwise
+            long mask = (long) (((diff | -diff) >> 31) ^ -1);
+            matched = (matched & ~mask) | (counter & mask);
+        }
+        return matched;
+    }
+
+    /**
+     * Encode the counter as the big-endian 8-byte message HOTP/TOTP expects.
+     *
+     * @param counter the counter
+     * @param out     the 8-byte output buffer
+     */
+    public static void EncodeCounter(long counter, byte[] out) {
+        for (int i = 8; i-- > 0; counter >>>= 8) {
+            out[i] = (byte) counter;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.github.onetimepass.core.otp;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+/**
+ * Anything that can hand out a prepared OtpGenerator (typically an account).
+ */
+public interface OtpSource {
+    /**
+     * Gets the prepared generator.
+     *
+     * @return the generator, or null if the source has no usable secret
+     */
+    OtpGenerator getGenerator();
+
+    /**
+     * Is the source counter-based (HOTP) rather than time-based?
+     *
+     * @return the boolean
+     */
+    boolean isCounterBased();
+
+    /**
+     * Gets the counter of a counter-based source.
+     *
+     * @return the counter
+     */
+    long getCounter();
+}
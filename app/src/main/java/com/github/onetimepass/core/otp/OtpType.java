@@ -0,0 +1,58 @@
+package com.github.onetimepass.core.otp;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+import java.util.Locale;
+
+/**
+ * The otpauth URI types ("host" part of the URI).
+ */
+public enum OtpType {
+    /**
+     * Time-based (RFC 6238), the default.
+     */
+    TOTP,
+    /**
+     * Counter-based (RFC 4226).
+     */
+    HOTP;
+
+    /**
+     * Gets the otpauth URI host for the type.
+     *
+     * @return the host
+     */
+    public String getHost() {
+        return name().toLowerCase(Locale.US);
+    }
+
+    /**
+     * Parse the otpauth URI host.
+     *
+     * @param host the host, may be null
+     * @return the type or null if unknown
+     */
+    public static OtpType Parse(String host) {
+        if (host != null) {
+            for (OtpType t : values()) {
+                if (t.getHost().equalsIgnoreCase(host))
+                    return t;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,156 @@
+package com.github.onetimepass.core.otp;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * HMAC-SHA1 specialised for one-time passwords.
+ *
+ * The inner (ipad) and outer (opad) key blocks are hashed once, when the key
+ * is set, and only their SHA-1 midstates are kept. Since the message is
+ * always the 8-byte counter, each code then costs exactly two compression
+ * function calls (one inner, one outer) and no JCA provider, Mac object or
+ * allocation is involved.
+ */
+final class Sha1Hmac implements OtpGenerator.Hmac {
+    private static final int BLOCK = 64;
+    // bit lengths of the padded messages: key block + counter, key block + inner digest
+    private static final int INNER_BITS = (BLOCK + 8) * 8;
+    private static final int OUTER_BITS = (BLOCK + 20) * 8;
+
+    private final int[] mInner = new int[5];
+    private final int[] mOuter = new int[5];
+    private final int[] mState = new int[5];
+    private final int[] mW = new int[80];
+
+    /**
+     * Instantiates a new HMAC-SHA1 keyed with the given key.
+     *
+     * @param key the key
+     * @throws GeneralSecurityException if a long key cannot be hashed
+     */
+    Sha1Hmac(byte[] key) throws GeneralSecurityException {
+        if (key.length > BLOCK)
+            key = MessageDigest.getInstance("SHA-1").digest(key);
+        byte[] block = new byte[BLOCK];
+        prepare(key, (byte) 0x36, block, mInner);
+        prepare(key, (byte) 0x5c, block, mOuter);
+        Arrays.fill(block, (byte) 0);
+        Arrays.fill(mW, 0);
+    }
+
+    private void prepare(byte[] key, byte pad, byte[] block, int[] midstate) {
+        for (int i = 0; i < BLOCK; i++) {
+            block[i] = (byte) ((i < key.length ? key[i] : 0) ^ pad);
+        }
+        for (int i = 0; i < 16; i++) {
+            mW[i] = ((block[i * 4] & 0xFF) << 24)
+                    | ((block[i * 4 + 1] & 0xFF) << 16)
+                    | ((block[i * 4 + 2] & 0xFF) << 8)
+                    | (block[i * 4 + 3] & 0xFF);
+        }
+        midstate[0] = 0x67452301;
+        midstate[1] = 0xEFCDAB89;
+        midstate[2] = 0x98BADCFE;
+        midstate[3] = 0x10325476;
+        midstate[4] = 0xC3D2E1F0;
+        compress(midstate, mW);
+    }
+
+    @Override
+    public int length() {
+        return 20;
+    }
+
+    @Override
+    public void mac(byte[] counter, byte[] out) {
+        int[] w = mW;
+        int[] h = mState;
+
+        // inner: H(ipad || counter), one block of padding included
+        w[0] = ((counter[0] & 0xFF) << 24) | ((counter[1] & 0xFF) << 16)
+                | ((counter[2] & 0xFF) << 8) | (counter[3] & 0xFF);
+        w[1] = ((counter[4] & 0xFF) << 24) | ((counter[5] & 0xFF) << 16)
+                | ((counter[6] & 0xFF) << 8) | (counter[7] & 0xFF);
+        w[2] = 0x80000000;
+        for (int i = 3; i < 15; i++) {
+            w[i] = 0;
+        }
+        w[15] = INNER_BITS;
+        System.arraycopy(mInner, 0, h, 0, 5);
+        compress(h, w);
+
+        // outer: H(opad || inner digest)
+        System.arraycopy(h, 0, w, 0, 5);
+        w[5] = 0x80000000;
+        for (int i = 6; i < 15; i++) {
+            w[i] = 0;
+        }
+        w[15] = OUTER_BITS;
+        System.arraycopy(mOuter, 0, h, 0, 5);
+        compress(h, w);
+
+        for (int i = 0; i < 5; i++) {
+            int v = h[i];
+            out[i * 4] = (byte) (v >>> 24);
+            out[i * 4 + 1] = (byte) (v >>> 16);
+            out[i * 4 + 2] = (byte) (v >>> 8);
+            out[i * 4 + 3] = (byte) v;
+        }
+    }
+
+    /**
+     * The SHA-1 compression function. The first 16 words of w hold the
+     * block, the rest is used as the message schedule.
+     */
+    private static void compress(int[] h, int[] w) {
+        for (int t = 16; t < 80; t++) {
+            int x = w[t - 3] ^ w[t - 8] ^ w[t - 14] ^ w[t - 16];
+            w[t] = (x << 1) | (x >>> 31);
+        }
+        int a = h[0];
+        int b = h[1];
+        int c = h[2];
+        int d = h[3];
+        int e = h[4];
+        int t = 0;
+        for (; t < 20; t++) {
+            int tmp = ((a << 5) | (a >>> 27)) + ((b & c) | (~b & d)) + e + 0x5A827999 + w[t];
+            e = d; d = c; c = (b << 30) | (b >>> 2); b = a; a = tmp;
+        }
+        for (; t < 40; t++) {
+            int tmp = ((a << 5) | (a >>> 27)) + (b ^ c ^ d) + e + 0x6ED9EBA1 + w[t];
+            e = d; d = c; c = (b << 30) | (b >>> 2); b = a; a = tmp;
+        }
+        for (; t < 60; t++) {
+            int tmp = ((a << 5) | (a >>> 27)) + ((b & c) | (b & d) | (c & d)) + e + 0x8F1BBCDC + w[t];
+            e = d; d = c; c = (b << 30) | (b >>> 2); b = a; a = tmp;
+        }
+        for (; t < 80; t++) {
+            int tmp = ((a << 5) | (a >>> 27)) + (b ^ c ^ d) + e + 0xCA62C1D6 + w[t];
+            e = d; d = c; c = (b << 30) | (b >>> 2); b = a; a = tmp;
+        }
+        h[0] += a;
+        h[1] += b;
+        h[2] += c;
+        h[3] += d;
+        h[4] += e;
+    }
+}
@@ -49,7 +49,6 @@ abstract public class Screen implements ScreenInterface {
     private Configuration mConfig;
     private final Controller mController;
     private ScreenFragment mScreenFragment;
-    private Storage mStorage;
     private Uri mInboundUri;
     private String[] mInboundData;
 
@@ -59,7 +58,6 @@ abstract public class Screen implements ScreenInterface {
      */
     public Screen(Controller controller) {
         mController = controller;
-        mStorage = Storage.getInstance(controller);
     }
 
     /*************************************************************************
@@ -107,12 +105,12 @@ abstract public class Screen implements ScreenInterface {
     }
 
     /**
-     * Gets storage.
+     * Gets storage, the active vault.
      *
      * @return the storage
      */
     final public Storage getStorage() {
-        return mStorage;
+        return Storage.getInstance(mController);
     }
 
     /**
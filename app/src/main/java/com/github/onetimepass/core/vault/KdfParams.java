@@ -0,0 +1,231 @@
+package com.github.onetimepass.core.vault;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+import android.util.Base64;
+
+import com.github.onetimepass.core.Notify;
+import com.tozny.crypto.android.AesCbcWithIntegrity;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The key derivation function and its cost, as stored in the vault.
+ *
+ * Vaults used to be keyed with whatever AesCbcWithIntegrity hard-codes:
+ * PBKDF2 over HMAC-SHA1 with 10000 iterations, the same on every device.
+ * The parameters are now written in the clear ahead of the encrypted
+ * records, and Calibrate() picks the iteration count that takes about
+ * TARGET_MILLIS on the device at hand, never fewer than the old count.
+ * Storage re-keys a vault whose cost is far off the calibrated one the
+ * next time it saves it.
+ *
+ * The parameters are not secret. Tampering with them only derives keys
+ * that fail to authenticate the vault.
+ */
+public final class KdfParams {
+    /**
+     * The algorithm id of PBKDF2 with HMAC-SHA1, the only one available
+     * down to API 21.
+     */
+    public static final int PBKDF2_SHA1 = 1;
+    /**
+     * The iteration count AesCbcWithIntegrity hard-codes.
+     */
+    public static final int LEGACY_ITERATIONS = 10000;
+    /**
+     * The fewest iterations calibration picks.
+     */
+    public static final int MIN_ITERATIONS = LEGACY_ITERATIONS;
+    /**
+     * The most iterations calibration picks.
+     */
+    public static final int MAX_ITERATIONS = 10000000;
+    /**
+     * The time one derivation should take.
+     */
+    public static final long TARGET_MILLIS = 500;
+    /**
+     * The parameters of vaults written before they were stored.
+     */
+    public static final KdfParams LEGACY = new KdfParams(PBKDF2_SHA1, LEGACY_ITERATIONS);
+
+    private static final String[] ALGORITHMS = {null, "PBKDF2WithHmacSHA1"};
+    private static final int AES_KEY_LENGTH = 16;
+    private static final int HMAC_KEY_LENGTH = 32;
+    private static final long PROBE_MILLIS = 50;
+
+    private static KdfParams mCalibrated = null;
+
+    /**
+     * The algorithm id.
+     */
+    public final int algorithm;
+    /**
+     * The iteration count.
+     */
+    public final int iterations;
+
+    /**
+     * Instantiates new key derivation parameters.
+     *
+     * @param algorithm  the algorithm id
+     * @param iterations the iteration count
+     */
+    public KdfParams(int algorithm, int iterations) {
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Gets the parameters calibrated for this device. The first call times
+     * a few short derivations, later ones return the same result.
+     *
+     * @return the calibrated parameters
+     */
+    public static synchronized KdfParams Calibrate() {
+        if (mCalibrated == null)
+            mCalibrated = Calibrate(TARGET_MILLIS);
+        return mCalibrated;
+    }
+
+    /**
+     * Calibrate the parameters for a target derivation time.
+     *
+     * @param targetMillis the target time in milliseconds
+     * @return the parameters
+     */
+    public static KdfParams Calibrate(long targetMillis) {
+        int probe = 1000;
+        long elapsed = 0;
+        try {
+            byte[] salt = new byte[16];
+            for (; ; probe *= 2) {
+                long start = System.nanoTime();
+                derive(ALGORITHMS[PBKDF2_SHA1], "calibration", salt, probe);
+                elapsed = (System.nanoTime() - start) / 1000000;
+                if (elapsed >= PROBE_MILLIS || probe >= MAX_ITERATIONS)
+                    break;
+            }
+        } catch (GeneralSecurityException e) {
+            Notify.Error("Key derivation calibration failed",e);
+            return LEGACY;
+        }
+        long iterations = probe * targetMillis / Math.max(1, elapsed);
+        iterations = Math.max(MIN_ITERATIONS, Math.min(MAX_ITERATIONS, iterations / 1000 * 1000));
+        Notify.Debug("calibrated "+iterations+" iterations, "+probe+" took "+elapsed+"ms");
+        return new KdfParams(PBKDF2_SHA1, (int) iterations);
+    }
+
+    /**
+     * Is the cost far enough off the calibrated one to re-key for it?
+     *
+     * @param calibrated the calibrated parameters
+     * @return the boolean
+     */
+    public boolean shouldRekey(KdfParams calibrated) {
+        if (algorithm != calibrated.algorithm)
+            return true;
+        // within a factor of 1.5 either way, timing noise must not re-key on every unlock
+        return iterations * 3L < calibrated.iterations * 2L
+                || iterations * 2L > calibrated.iterations * 3L;
+    }
+
+    /**
+     * Derive the vault keys.
+     *
+     * @param passphrase the passphrase
+     * @param salt       the salt, base64 encoded as for AesCbcWithIntegrity
+     * @return the keys
+     * @throws GeneralSecurityException if the keys cannot be derived
+     */
+    public AesCbcWithIntegrity.SecretKeys Derive(String passphrase, String salt) throws GeneralSecurityException {
+        if (equals(LEGACY))
+            return AesCbcWithIntegrity.generateKeyFromPassword(passphrase, salt);
+        if (algorithm <= 0 || algorithm >= ALGORITHMS.length)
+            throw new GeneralSecurityException("unsupported key derivation: "+algorithm);
+        byte[] key = derive(ALGORITHMS[algorithm], passphrase, Base64.decode(salt, Base64.NO_WRAP), iterations);
+        return new AesCbcWithIntegrity.SecretKeys(
+                new SecretKeySpec(Arrays.copyOfRange(key, 0, AES_KEY_LENGTH), "AES"),
+                new SecretKeySpec(Arrays.copyOfRange(key, AES_KEY_LENGTH, AES_KEY_LENGTH + HMAC_KEY_LENGTH), "HmacSHA256"));
+    }
+
+    private static byte[] derive(String algorithm, String passphrase, byte[] salt, int iterations) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(passphrase.toCharArray(), salt, iterations, (AES_KEY_LENGTH + HMAC_KEY_LENGTH) * 8);
+        try {
+            return SecretKeyFactory.getInstance(algorithm).generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Read parameters as written by writeTo().
+     *
+     * @param in the input
+     * @return the parameters
+     * @throws IOException              on read failures
+     * @throws GeneralSecurityException if the parameters are not supported
+     */
+    public static KdfParams ReadFrom(DataInput in) throws IOException, GeneralSecurityException {
+        int algorithm = in.readUnsignedByte();
+        int iterations = in.readInt();
+        if (algorithm <= 0 || algorithm >= ALGORITHMS.length)
+            throw new GeneralSecurityException("unsupported key derivation: "+algorithm);
+        if (iterations <= 0 || iterations > MAX_ITERATIONS)
+            throw new GeneralSecurityException("unsupported key derivation cost: "+iterations);
+        return new KdfParams(algorithm, iterations);
+    }
+
+    /**
+     * Write the parameters: the algorithm id byte and the iteration count.
+     *
+     * @param out the output
+     * @throws IOException on write failures
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(algorithm);
+        out.writeInt(iterations);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof KdfParams))
+            return false;
+        KdfParams other = (KdfParams) o;
+        return algorithm == other.algorithm && iterations == other.iterations;
+    }
+
+    @Override
+    public int hashCode() {
+        return algorithm * 31 + iterations;
+    }
+
+    @Override
+    public String toString() {
+        String name = algorithm > 0 && algorithm < ALGORITHMS.length ? ALGORITHMS[algorithm] : "#"+algorithm;
+        return name+"/"+iterations;
+    }
+}
@@ -0,0 +1,119 @@
+package com.github.onetimepass.core.vault;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+import android.util.Base64;
+
+import com.github.onetimepass.core.Notify;
+import com.tozny.crypto.android.AesCbcWithIntegrity;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Session cache of keys derived from passphrases.
+ *
+ * Key derivation is deliberately slow, and the same passphrase is derived
+ * again on every open, passphrase check and reopen. The keys derived in
+ * this session are kept, looked up by a hash of the passphrase, salt and
+ * derivation parameters so the passphrase itself is not retained, until
+ * the session ends with a lock or quit and Clear() is called. Only the
+ * last few derivations are kept.
+ *
+ * Handing out the same keys object for the same passphrase also lets the
+ * VaultFile reuse the records it encrypted before the reopen.
+ */
+public final class KeyCache {
+    /**
+     * The number of derived keys kept.
+     */
+    static final int MAX_ENTRIES = 4;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static KeyCache mInstance = null;
+
+    private final LinkedHashMap<String,AesCbcWithIntegrity.SecretKeys> mKeys =
+            new LinkedHashMap<String,AesCbcWithIntegrity.SecretKeys>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String,AesCbcWithIntegrity.SecretKeys> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private KeyCache() {}
+
+    /**
+     * Gets the session key cache.
+     *
+     * @return the instance
+     */
+    public static synchronized KeyCache getInstance() {
+        if (mInstance == null)
+            mInstance = new KeyCache();
+        return mInstance;
+    }
+
+    /**
+     * Derive the keys for a passphrase and salt, or return the ones derived
+     * earlier in this session.
+     *
+     * @param passphrase the passphrase
+     * @param salt       the salt
+     * @param kdf        the key derivation parameters
+     * @return the keys
+     * @throws GeneralSecurityException if the keys cannot be derived
+     */
+    public AesCbcWithIntegrity.SecretKeys Derive(String passphrase, String salt, KdfParams kdf) throws GeneralSecurityException {
+        String id = id(passphrase, salt, kdf);
+        synchronized (this) {
+            AesCbcWithIntegrity.SecretKeys keys = mKeys.get(id);
+            if (keys != null)
+                return keys;
+        }
+        Notify.Debug("deriving keys");
+        // derived outside the lock, lookups for other passphrases go on meanwhile
+        AesCbcWithIntegrity.SecretKeys keys = kdf.Derive(passphrase, salt);
+        synchronized (this) {
+            AesCbcWithIntegrity.SecretKeys raced = mKeys.get(id);
+            if (raced != null)
+                return raced;
+            mKeys.put(id, keys);
+        }
+        return keys;
+    }
+
+    /**
+     * Forget every derived key, the session is over.
+     */
+    public synchronized void Clear() {
+        Notify.Debug();
+        mKeys.clear();
+    }
+
+    private static String id(String passphrase, String salt, KdfParams kdf) throws GeneralSecurityException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] p = passphrase.getBytes(UTF8);
+        digest.update(new byte[] {(byte) (p.length >>> 24), (byte) (p.length >>> 16), (byte) (p.length >>> 8), (byte) p.length});
+        digest.update(p);
+        digest.update(new byte[] {(byte) kdf.algorithm, (byte) (kdf.iterations >>> 24), (byte) (kdf.iterations >>> 16), (byte) (kdf.iterations >>> 8), (byte) kdf.iterations});
+        digest.update(salt.getBytes(UTF8));
+        return Base64.encodeToString(digest.digest(), Base64.NO_WRAP);
+    }
+}
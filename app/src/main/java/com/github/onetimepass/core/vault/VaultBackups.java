@@ -0,0 +1,293 @@
+package com.github.onetimepass.core.vault;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+
+import android.system.ErrnoException;
+import android.system.Os;
+
+import com.github.onetimepass.core.Notify;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Rotating generations of a vault file.
+ *
+ * A generation is taken after every full write of the vault, by hard
+ * linking the file that was just written under a name holding the time
+ * and the digest of its records. Vault files are never written in place,
+ * every write renames a new file over the old one, so the link keeps the
+ * generation intact at no cost in disk writes or space beyond the file
+ * itself. A write that did not change any record (a re-encrypted header
+ * only) has the digest of the newest generation and is skipped.
+ *
+ * Only the newest few generations are kept. Anything else named like a
+ * backup of the vault, such as the per-save copies older versions left
+ * behind, is removed by Prune().
+ *
+ * Restoring links a generation back in place of the vault, without reading
+ * or decrypting it. The journal of the vault it replaces no longer applies
+ * and is dropped when the restored vault is opened.
+ */
+public final class VaultBackups {
+    /**
+     * A generation of the vault.
+     */
+    public static final class Generation {
+        /**
+         * The backup file.
+         */
+        public final File file;
+        /**
+         * The time the generation was taken, in milliseconds since the epoch.
+         */
+        public final long time;
+        /**
+         * The hex digest of the records.
+         */
+        public final String digest;
+
+        Generation(File file, long time, String digest) {
+            this.file = file;
+            this.time = time;
+            this.digest = digest;
+        }
+    }
+
+    private static final String INFIX = ".backup.";
+    private static final int DIGEST_CHARS = 32;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File mVault;
+    private final int mGenerations;
+
+    /**
+     * Instantiates the backups of a vault.
+     *
+     * @param vault       the vault file
+     * @param generations the number of generations kept
+     */
+    public VaultBackups(File vault, int generations) {
+        mVault = vault.getAbsoluteFile();
+        mGenerations = generations;
+    }
+
+    /**
+     * Gets the generations kept, newest first.
+     *
+     * @return the generations
+     */
+    public synchronized List<Generation> getGenerations() {
+        ArrayList<Generation> generations = new ArrayList<Generation>();
+        File[] files = listBackups();
+        for (File file : files) {
+            Generation generation = parse(file);
+            if (generation != null)
+                generations.add(generation);
+        }
+        Collections.sort(generations, new Comparator<Generation>() {
+            @Override
+            public int compare(Generation a, Generation b) {
+                return a.time < b.time ? 1 : (a.time > b.time ? -1 : 0);
+            }
+        });
+        return generations;
+    }
+
+    /**
+     * Take a generation of the vault just written, unless its records are
+     * those of the newest generation. The oldest generations beyond the
+     * number kept are removed.
+     *
+     * The file linked is the one the encoded vault was written to, not
+     * the vault path: by the time this runs another write may have renamed
+     * a different file over the vault, which would then be kept under this
+     * digest.
+     *
+     * @param encoded the vault as written
+     * @param written the file it was written to, the vault itself or the
+     *                file about to be renamed over it
+     * @return true if a generation was taken
+     */
+    public synchronized boolean Add(VaultFile.Encoded encoded, File written) {
+        Notify.Debug();
+        String digest = hex(encoded.digest);
+        List<Generation> generations = getGenerations();
+        if (!generations.isEmpty() && generations.get(0).digest.equals(digest)) {
+            Notify.Debug("vault records unchanged, no new backup generation");
+            return false;
+        }
+        long time = System.currentTimeMillis();
+        if (!generations.isEmpty() && time <= generations.get(0).time)
+            time = generations.get(0).time + 1; // keep the names ordered
+        File backup = new File(mVault.getPath()+INFIX+time+"-"+digest);
+        try {
+            link(written, backup, encoded.bytes);
+        } catch (IOException e) {
+            Notify.Error("Failed to back up the vault",e);
+            return false;
+        }
+        generations.add(0, new Generation(backup, time, digest));
+        for (int i = mGenerations; i < generations.size(); i++) {
+            delete(generations.get(i).file);
+        }
+        return true;
+    }
+
+    /**
+     * Remove everything named like a backup of the vault that is not one of
+     * the generations kept. Meant to run in the background.
+     */
+    public synchronized void Prune() {
+        Notify.Debug();
+        List<Generation> generations = getGenerations();
+        ArrayList<File> kept = new ArrayList<File>();
+        for (int i = 0; i < generations.size() && i < mGenerations; i++) {
+            kept.add(generations.get(i).file);
+        }
+        for (File file : listBackups()) {
+            if (!kept.contains(file))
+                delete(file);
+        }
+    }
+
+    /**
+     * Take a generation out of rotation, to be put back in place of the
+     * vault by Restore(). The taken copy stays even when saving the vault
+     * meanwhile rotates the generation itself out.
+     *
+     * @param generation the generation
+     * @return the taken copy
+     * @throws IOException if the generation could not be taken
+     */
+    public synchronized File Take(Generation generation) throws IOException {
+        Notify.Debug();
+        if (!generation.file.isFile())
+            throw new IOException("missing backup: "+generation.file);
+        File taken = new File(mVault.getPath()+".restore");
+        if (taken.exists() && !taken.delete())
+            throw new IOException("cannot remove "+taken);
+        try {
+            link(generation.file, taken, null);
+        } catch (IOException e) {
+            delete(taken);
+            throw e;
+        }
+        return taken;
+    }
+
+    /**
+     * Put a generation taken with Take() back in place of the vault. The
+     * vault must not be open.
+     *
+     * @param taken the taken copy
+     * @throws IOException if the vault could not be replaced, it is left untouched
+     */
+    public synchronized void Restore(File taken) throws IOException {
+        Notify.Debug();
+        if (!taken.renameTo(mVault)) {
+            delete(taken);
+            throw new IOException("cannot rename "+taken+" to "+mVault);
+        }
+        VaultWriter.SyncDirectory(mVault.getParentFile());
+    }
+
+    private File[] listBackups() {
+        final String prefix = mVault.getName()+INFIX;
+        File[] files = mVault.getParentFile().listFiles();
+        if (files == null)
+            return new File[0];
+        ArrayList<File> backups = new ArrayList<File>();
+        for (File file : files) {
+            if (file.getName().startsWith(prefix))
+                backups.add(file);
+        }
+        return backups.toArray(new File[backups.size()]);
+    }
+
+    private Generation parse(File file) {
+        String rest = file.getName().substring(mVault.getName().length() + INFIX.length());
+        int dash = rest.indexOf('-');
+        if (dash <= 0 || rest.length() - dash - 1 != DIGEST_CHARS)
+            return null;
+        try {
+            return new Generation(file, Long.parseLong(rest.substring(0, dash)), rest.substring(dash + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Hard link a file, falling back to a copy where links are not
+     * supported. The copy is made from the given contents when there are
+     * any.
+     */
+    private static void link(File from, File to, byte[] contents) throws IOException {
+        try {
+            Os.link(from.getPath(), to.getPath());
+            return;
+        } catch (ErrnoException e) {
+            Notify.Debug("cannot link "+to.toString()+", copying",e);
+        }
+        boolean copied = false;
+        FileOutputStream output = new FileOutputStream(to, false);
+        try {
+            if (contents != null) {
+                output.write(contents);
+            } else {
+                InputStream input = new FileInputStream(from);
+                try {
+                    byte[] buffer = new byte[8192];
+                    for (int n; (n = input.read(buffer)) > 0; ) {
+                        output.write(buffer, 0, n);
+                    }
+                } finally {
+                    input.close();
+                }
+            }
+            output.flush();
+            output.getFD().sync();
+            copied = true;
+        } finally {
+            output.close();
+            if (!copied)
+                delete(to);
+        }
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete())
+            Notify.Error("Failed to remove vault backup: "+file.toString());
+    }
+
+    private static String hex(byte[] digest) {
+        char[] hex = new char[DIGEST_CHARS];
+        for (int i = 0; i < DIGEST_CHARS / 2; i++) {
+            hex[2 * i] = HEX[(digest[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX[digest[i] & 0xF];
+        }
+        return new String(hex);
+    }
+}
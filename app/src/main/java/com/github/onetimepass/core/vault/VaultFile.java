@@ -0,0 +1,750 @@
+package com.github.onetimepass.core.vault;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+import android.util.Base64;
+
+import com.github.onetimepass.core.Notify;
+import com.github.onetimepass.core.account.AccountEntry;
+import com.tozny.crypto.android.AesCbcWithIntegrity;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * The vault file codec.
+ *
+ * A vault is a magic and version, the key derivation parameters (in the
+ * clear, the keys depend on them), then length-prefixed binary records in
+ * three parts: an encrypted header, the index block and the secret block.
+ * Every account has an encrypted, authenticated record in each block. The
+ * index record holds everything shown in the account list, in the layout
+ * of AccountEntry.writeIndexTo(); the secret record holds only the secret.
+ * The index block is preceded by its length, the secret block runs to the
+ * end of the file. The header lists, in order, the MACs of every account's
+ * two records and the offset of its secret record in the secret block.
+ * Records hold the raw iv, MAC and ciphertext, no text encoding is
+ * involved anywhere.
+ *
+ * The header keeps records from being dropped, reordered, paired with
+ * another account's secret or swapped in from another vault unnoticed,
+ * while a damaged record only costs that one account instead of the whole
+ * file. The encrypted records of each entry and secret are kept (both are
+ * immutable), so writing the vault again only encrypts what changed since
+ * it was read or last written.
+ *
+ * Decoding streams the index block: its records are decrypted one at a
+ * time and every account goes to the listener as soon as it is, before the
+ * secret block is even read, so the time to the account list does not
+ * depend on the secrets. The secret block is then read whole but not
+ * looked into, beyond checking that each secret record is where the header
+ * says and carries the MAC it lists; one that is not costs its account
+ * like a damaged index record. A secret is authenticated and decrypted
+ * only when something asks for it. Should that fail, the account keeps an
+ * unreadable secret (see AccountEntry.Secret) and encoding copies its
+ * record through as it was or, with other keys, fails rather than write
+ * it out empty.
+ *
+ * Older vaults are still read: version 5 with each secret record right
+ * after its index record, version 4 with a single record per account in
+ * the layout of AccountEntry.writeTo(), the text format with one base64
+ * record per line (streamed line by line), and the original single
+ * ciphertext over a JSON array of JSON strings (read whole, there is no way
+ * to authenticate it before the end). Contents.current tells the caller to
+ * rewrite those.
+ */
+public class VaultFile {
+    /**
+     * The magic at the start of a binary vault.
+     */
+    static final byte[] MAGIC = {'O', 'T', 'P', 'V'};
+    /**
+     * The current format version.
+     */
+    public static final int VERSION = 6;
+    /**
+     * The binary format with the secret records between the index records.
+     */
+    static final int VERSION_INTERLEAVED = 5;
+    /**
+     * The binary format with the whole account in a single record.
+     */
+    static final int VERSION_FULL_RECORDS = 4;
+    /**
+     * The binary format before the key derivation parameters were stored.
+     */
+    static final int VERSION_FIXED_KDF = 3;
+    /**
+     * The first line of a version 2 (text) vault.
+     */
+    static final String TEXT_MAGIC = "otpvault/2";
+
+    private static final int IV_LENGTH = 16;
+    private static final int MAC_LENGTH = 32;
+    private static final int KDF_LENGTH = 1 + 4;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * The source of the vault keys, derived once the parameters the vault
+     * was written with are known.
+     */
+    public interface KeySource {
+        /**
+         * Gets the keys.
+         *
+         * @param kdf the key derivation parameters of the vault
+         * @return the keys
+         * @throws GeneralSecurityException if the keys cannot be derived
+         */
+        AesCbcWithIntegrity.SecretKeys getKeys(KdfParams kdf) throws GeneralSecurityException;
+    }
+
+    /**
+     * The listener told about every account as soon as it is decrypted.
+     */
+    public interface Listener {
+        /**
+         * On account. The secret of the entry cannot be read before
+         * Decode() returns.
+         *
+         * @param entry the entry
+         * @param index the index
+         * @param count the number of records in the vault, -1 if unknown
+         */
+        void onAccount(AccountEntry entry, int index, int count);
+    }
+
+    /**
+     * The contents of a decoded vault.
+     */
+    public static class Contents {
+        /**
+         * The id of the vault, as named by the journal header.
+         */
+        public final String baseId;
+        /**
+         * The accounts read.
+         */
+        public final ArrayList<AccountEntry> accounts;
+        /**
+         * The number of records that were damaged and skipped.
+         */
+        public final int damaged;
+        /**
+         * Is the vault in the current format? If not it should be rewritten.
+         */
+        public final boolean current;
+        /**
+         * The key derivation parameters of the vault.
+         */
+        public final KdfParams kdf;
+        /**
+         * The keys the vault was decrypted with.
+         */
+        public final AesCbcWithIntegrity.SecretKeys keys;
+
+        Contents(String baseId, ArrayList<AccountEntry> accounts, int damaged, boolean current, KdfParams kdf, AesCbcWithIntegrity.SecretKeys keys) {
+            this.baseId = baseId;
+            this.accounts = accounts;
+            this.damaged = damaged;
+            this.current = current;
+            this.kdf = kdf;
+            this.keys = keys;
+        }
+    }
+
+    /**
+     * An encoded vault, ready to be written.
+     */
+    public static class Encoded {
+        /**
+         * The id of the vault, as named by the journal header.
+         */
+        public final String baseId;
+        /**
+         * The file contents.
+         */
+        public final byte[] bytes;
+        /**
+         * A digest of the records. Vaults encoded from the same records (not
+         * only the same accounts) have the same digest, even though their
+         * bytes differ in the freshly encrypted header.
+         */
+        public final byte[] digest;
+
+        Encoded(String baseId, byte[] bytes, byte[] digest) {
+            this.baseId = baseId;
+            this.bytes = bytes;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * An encrypted record, in the layout readRecord() reads. Records read
+     * from a block stay slices of it.
+     */
+    private static class Record {
+        private final byte[] mBytes;
+        private final int mOffset;
+        private final int mLength;
+
+        Record(AesCbcWithIntegrity.CipherTextIvMac civ) {
+            byte[] ct = civ.getCipherText();
+            mBytes = new byte[IV_LENGTH + MAC_LENGTH + ct.length];
+            mOffset = 0;
+            mLength = mBytes.length;
+            System.arraycopy(civ.getIv(), 0, mBytes, 0, IV_LENGTH);
+            System.arraycopy(civ.getMac(), 0, mBytes, IV_LENGTH, MAC_LENGTH);
+            System.arraycopy(ct, 0, mBytes, IV_LENGTH + MAC_LENGTH, ct.length);
+        }
+
+        private Record(byte[] bytes, int offset, int length) {
+            mBytes = bytes;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        /**
+         * The record at an offset of a block, or null if it does not fit.
+         */
+        static Record at(byte[] block, int offset) {
+            if (offset < 0 || offset > block.length - 4)
+                return null;
+            int length = ByteBuffer.wrap(block).getInt(offset);
+            if (length < IV_LENGTH + MAC_LENGTH || length > block.length - offset - 4)
+                return null;
+            return new Record(block, offset + 4, length);
+        }
+
+        int length() {
+            return mLength;
+        }
+
+        byte[] getMac() {
+            return Arrays.copyOfRange(mBytes, mOffset + IV_LENGTH, mOffset + IV_LENGTH + MAC_LENGTH);
+        }
+
+        boolean hasMac(byte[] mac) {
+            for (int i = 0; i < MAC_LENGTH; i++) {
+                if (mBytes[mOffset + IV_LENGTH + i] != mac[i])
+                    return false;
+            }
+            return true;
+        }
+
+        AesCbcWithIntegrity.CipherTextIvMac getCiv() {
+            return new AesCbcWithIntegrity.CipherTextIvMac(
+                    Arrays.copyOfRange(mBytes, mOffset + IV_LENGTH + MAC_LENGTH, mOffset + mLength),
+                    Arrays.copyOfRange(mBytes, mOffset, mOffset + IV_LENGTH),
+                    getMac());
+        }
+
+        void writeTo(ByteBuffer out) {
+            out.putInt(mLength);
+            out.put(mBytes, mOffset, mLength);
+        }
+    }
+
+    /**
+     * A secret left in its record until first used. The record is
+     * authenticated only then, by the decryption.
+     */
+    private static class SecretRecord implements AccountEntry.Secret.Source {
+        private final int mIndex;
+        private final AesCbcWithIntegrity.SecretKeys mKeys;
+        private volatile Record mRecord = null;
+
+        SecretRecord(int index, AesCbcWithIntegrity.SecretKeys keys) {
+            mIndex = index;
+            mKeys = keys;
+        }
+
+        void setRecord(Record record) {
+            mRecord = record;
+        }
+
+        @Override
+        public String read() throws Exception {
+            Record record = mRecord;
+            if (record == null)
+                throw new GeneralSecurityException("secret record "+mIndex+" not read yet");
+            byte[] plain = AesCbcWithIntegrity.decrypt(record.getCiv(), mKeys);
+            return new DataInputStream(new ByteArrayInputStream(plain)).readUTF();
+        }
+    }
+
+    private IdentityHashMap<AccountEntry,Record> mRecords = new IdentityHashMap<AccountEntry,Record>();
+    private IdentityHashMap<AccountEntry.Secret,Record> mSecrets = new IdentityHashMap<AccountEntry.Secret,Record>();
+    private AesCbcWithIntegrity.SecretKeys mKeys = null;
+
+    /**
+     * Decode a vault file. Damaged records are skipped and counted.
+     *
+     * @param in       the file contents, read to the end but not closed
+     * @param keys     the source of the vault keys
+     * @param listener the listener, may be null
+     * @return the contents
+     * @throws GeneralSecurityException if nothing in the vault authenticates with the keys
+     * @throws IOException              on read failures
+     */
+    public synchronized Contents Decode(InputStream in, KeySource keys, Listener listener) throws GeneralSecurityException, IOException {
+        Notify.Debug();
+        InputStream buffered = in.markSupported() ? in : new BufferedInputStream(in);
+        byte[] start = new byte[TEXT_MAGIC.length() + 1];
+        buffered.mark(start.length);
+        int length = 0;
+        for (int n; length < start.length && (n = buffered.read(start, length, start.length - length)) > 0; ) {
+            length += n;
+        }
+        buffered.reset();
+        if (length > MAGIC.length && startsWith(start, MAGIC))
+            return decodeBinary(new DataInputStream(buffered), keys, listener);
+        if (length == start.length && startsWith(start, (TEXT_MAGIC + "\n").getBytes(ASCII)))
+            return decodeText(new BufferedReader(new InputStreamReader(buffered, ASCII)), keys.getKeys(KdfParams.LEGACY), listener);
+        return decodeLegacy(buffered, keys.getKeys(KdfParams.LEGACY), listener);
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Read one record, or null at the clean end of the vault.
+     */
+    private static AesCbcWithIntegrity.CipherTextIvMac readRecord(DataInputStream in) throws GeneralSecurityException, IOException {
+        return readRecord(in, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Read one record of at most limit bytes after its length, or null at
+     * the end of the input. The journal frames its records the same way.
+     */
+    static AesCbcWithIntegrity.CipherTextIvMac readRecord(DataInputStream in, int limit) throws GeneralSecurityException, IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < IV_LENGTH + MAC_LENGTH || length > limit)
+            throw new GeneralSecurityException("bad record length: "+length);
+        byte[] iv = new byte[IV_LENGTH];
+        byte[] mac = new byte[MAC_LENGTH];
+        byte[] ct = new byte[length - IV_LENGTH - MAC_LENGTH];
+        try {
+            in.readFully(iv);
+            in.readFully(mac);
+            in.readFully(ct);
+        } catch (EOFException e) {
+            throw new GeneralSecurityException("truncated record", e);
+        }
+        return new AesCbcWithIntegrity.CipherTextIvMac(ct, iv, mac);
+    }
+
+    /**
+     * Write one record in the layout readRecord() reads.
+     */
+    static void writeRecord(DataOutputStream out, AesCbcWithIntegrity.CipherTextIvMac civ) throws IOException {
+        out.writeInt(IV_LENGTH + MAC_LENGTH + civ.getCipherText().length);
+        out.write(civ.getIv());
+        out.write(civ.getMac());
+        out.write(civ.getCipherText());
+    }
+
+    private Contents decodeBinary(DataInputStream in, KeySource keys, Listener listener) throws GeneralSecurityException, IOException {
+        in.skipBytes(MAGIC.length);
+        int version = in.readUnsignedByte();
+        KdfParams kdf;
+        if (version == VERSION || version == VERSION_INTERLEAVED || version == VERSION_FULL_RECORDS)
+            kdf = KdfParams.ReadFrom(in);
+        else if (version == VERSION_FIXED_KDF)
+            kdf = KdfParams.LEGACY;
+        else
+            throw new GeneralSecurityException("unsupported vault version: "+version);
+        AesCbcWithIntegrity.SecretKeys passKeys = keys.getKeys(kdf);
+        AesCbcWithIntegrity.CipherTextIvMac header = readRecord(in);
+        if (header == null)
+            throw new GeneralSecurityException("truncated vault header");
+        if (version == VERSION)
+            return decodeIndexed(in, header, passKeys, kdf, listener);
+        int perAccount = version == VERSION_INTERLEAVED ? 2 : 1;
+        byte[][] macs = null;
+        try {
+            ByteBuffer h = ByteBuffer.wrap(AesCbcWithIntegrity.decrypt(header, passKeys));
+            macs = new byte[h.getInt() * perAccount][];
+            for (int i = 0; i < macs.length; i++) {
+                macs[i] = new byte[MAC_LENGTH];
+                h.get(macs[i]);
+            }
+        } catch (Exception e) {
+            Notify.Error("Unreadable vault header, reading records on their own",e);
+            macs = null;
+        }
+        int count = macs != null ? macs.length / perAccount : -1;
+        IdentityHashMap<AccountEntry,Record> records = new IdentityHashMap<AccountEntry,Record>();
+        IdentityHashMap<AccountEntry.Secret,Record> secrets = new IdentityHashMap<AccountEntry.Secret,Record>();
+        ArrayList<AccountEntry> accounts = new ArrayList<AccountEntry>(count > 0 ? count : 16);
+        int damaged = 0;
+        int idx = 0;
+        for (;; idx++) {
+            AesCbcWithIntegrity.CipherTextIvMac civ;
+            AesCbcWithIntegrity.CipherTextIvMac secretCiv = null;
+            try {
+                civ = readRecord(in);
+                if (civ != null && perAccount == 2 && (secretCiv = readRecord(in)) == null)
+                    throw new GeneralSecurityException("missing secret record");
+            } catch (GeneralSecurityException e) {
+                Notify.Error("Truncated vault after record "+idx,e);
+                break; // the framing is lost, nothing after this can be read
+            }
+            if (civ == null)
+                break;
+            try {
+                int m = idx * perAccount;
+                if (macs != null && (m >= macs.length || !Arrays.equals(civ.getMac(), macs[m])
+                        || (secretCiv != null && !Arrays.equals(secretCiv.getMac(), macs[m + 1]))))
+                    throw new GeneralSecurityException("record "+idx+" does not belong here");
+                byte[] plain = AesCbcWithIntegrity.decrypt(civ, passKeys);
+                DataInputStream data = new DataInputStream(new ByteArrayInputStream(plain));
+                AccountEntry entry;
+                if (secretCiv != null) {
+                    SecretRecord source = new SecretRecord(idx, passKeys);
+                    Record secretRecord = new Record(secretCiv);
+                    source.setRecord(secretRecord);
+                    AccountEntry.Secret secret = new AccountEntry.Secret(source);
+                    entry = AccountEntry.ReadIndexFrom(accounts.size(), data, secret);
+                    secrets.put(secret, secretRecord);
+                    records.put(entry, new Record(civ));
+                } else {
+                    // a whole account in one record, rewritten in two on the next save
+                    entry = AccountEntry.ReadFrom(accounts.size(), data);
+                }
+                accounts.add(entry);
+                if (listener != null)
+                    listener.onAccount(entry, idx, count);
+            } catch (Exception e) {
+                Notify.Error("Skipping damaged vault record "+idx,e);
+                damaged++;
+            }
+        }
+        if (count > idx)
+            damaged += count - idx;
+        if (macs == null && accounts.isEmpty())
+            throw new GeneralSecurityException("nothing in the vault authenticates");
+        mRecords = records;
+        mSecrets = secrets;
+        mKeys = passKeys;
+        return new Contents(VaultJournal.BaseId(header), accounts, damaged, false, kdf, passKeys);
+    }
+
+    private Contents decodeIndexed(DataInputStream in, AesCbcWithIntegrity.CipherTextIvMac header, AesCbcWithIntegrity.SecretKeys passKeys, KdfParams kdf, Listener listener) throws GeneralSecurityException, IOException {
+        byte[][] macs = null;
+        int[] offsets = null;
+        try {
+            ByteBuffer h = ByteBuffer.wrap(AesCbcWithIntegrity.decrypt(header, passKeys));
+            int n = h.getInt();
+            if (n < 0 || n > h.remaining() / (2 * MAC_LENGTH + 4))
+                throw new GeneralSecurityException("bad account count: "+n);
+            macs = new byte[2 * n][];
+            offsets = new int[n];
+            for (int i = 0; i < n; i++) {
+                macs[2 * i] = new byte[MAC_LENGTH];
+                h.get(macs[2 * i]);
+                macs[2 * i + 1] = new byte[MAC_LENGTH];
+                h.get(macs[2 * i + 1]);
+                offsets[i] = h.getInt();
+            }
+        } catch (Exception e) {
+            Notify.Error("Unreadable vault header, reading records on their own",e);
+            macs = null;
+            offsets = null;
+        }
+        int count = offsets != null ? offsets.length : -1;
+        int indexLength;
+        try {
+            indexLength = in.readInt();
+        } catch (EOFException e) {
+            throw new GeneralSecurityException("truncated vault header", e);
+        }
+        if (indexLength < 0)
+            throw new GeneralSecurityException("bad index length: "+indexLength);
+        DataInputStream index = new DataInputStream(new ByteArrayInputStream(readBlock(in, indexLength)));
+        IdentityHashMap<AccountEntry,Record> records = new IdentityHashMap<AccountEntry,Record>();
+        ArrayList<AccountEntry> accounts = new ArrayList<AccountEntry>(count > 0 ? count : 16);
+        ArrayList<SecretRecord> sources = new ArrayList<SecretRecord>(count > 0 ? count : 16);
+        int damaged = 0;
+        int idx = 0;
+        for (int left; (left = index.available()) > 0; idx++) {
+            AesCbcWithIntegrity.CipherTextIvMac civ;
+            try {
+                civ = readRecord(index, left - 4);
+            } catch (GeneralSecurityException e) {
+                Notify.Error("Truncated vault index after record "+idx,e);
+                break; // the framing is lost, nothing after this can be read
+            }
+            if (civ == null)
+                break;
+            try {
+                if (macs != null && (2 * idx >= macs.length || !Arrays.equals(civ.getMac(), macs[2 * idx])))
+                    throw new GeneralSecurityException("record "+idx+" does not belong here");
+                byte[] plain = AesCbcWithIntegrity.decrypt(civ, passKeys);
+                SecretRecord source = new SecretRecord(idx, passKeys);
+                AccountEntry entry = AccountEntry.ReadIndexFrom(accounts.size(),
+                        new DataInputStream(new ByteArrayInputStream(plain)), new AccountEntry.Secret(source));
+                records.put(entry, new Record(civ));
+                accounts.add(entry);
+                sources.add(source);
+                if (listener != null)
+                    listener.onAccount(entry, idx, count);
+            } catch (Exception e) {
+                Notify.Error("Skipping damaged vault record "+idx,e);
+                damaged++;
+            }
+        }
+        if (count > idx)
+            damaged += count - idx;
+        if (macs == null && accounts.isEmpty())
+            throw new GeneralSecurityException("nothing in the vault authenticates");
+        // the secrets are only located here, authenticated on first use
+        byte[] block = readBlock(in, Integer.MAX_VALUE);
+        if (offsets == null)
+            offsets = walk(block);
+        IdentityHashMap<AccountEntry.Secret,Record> secrets = new IdentityHashMap<AccountEntry.Secret,Record>();
+        ArrayList<AccountEntry> located = new ArrayList<AccountEntry>(accounts.size());
+        for (int i = 0; i < accounts.size(); i++) {
+            AccountEntry entry = accounts.get(i);
+            SecretRecord source = sources.get(i);
+            Record record = source.mIndex < offsets.length ? Record.at(block, offsets[source.mIndex]) : null;
+            if (record == null || (macs != null && !record.hasMac(macs[2 * source.mIndex + 1]))) {
+                Notify.Error("Skipping vault record "+source.mIndex+", its secret record is missing or misplaced");
+                records.remove(entry);
+                damaged++;
+                continue;
+            }
+            source.setRecord(record);
+            secrets.put(entry.getSecretHolder(), record);
+            located.add(entry);
+        }
+        mRecords = records;
+        mSecrets = secrets;
+        mKeys = passKeys;
+        return new Contents(VaultJournal.BaseId(header), located, damaged, true, kdf, passKeys);
+    }
+
+    /**
+     * Read up to length bytes, fewer if the input ends first.
+     */
+    private static byte[] readBlock(InputStream in, int length) throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream(Math.max(0, Math.min(length, in.available())));
+        byte[] buffer = new byte[8192];
+        for (int n; block.size() < length && (n = in.read(buffer, 0, Math.min(buffer.length, length - block.size()))) > 0; ) {
+            block.write(buffer, 0, n);
+        }
+        return block.toByteArray();
+    }
+
+    /**
+     * The offsets of the records in a block, in order, for want of a header
+     * listing them.
+     */
+    private static int[] walk(byte[] block) {
+        ArrayList<Integer> found = new ArrayList<Integer>();
+        for (int offset = 0; ; ) {
+            Record record = Record.at(block, offset);
+            if (record == null)
+                break;
+            found.add(offset);
+            offset += 4 + record.length();
+        }
+        int[] offsets = new int[found.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = found.get(i);
+        }
+        return offsets;
+    }
+
+    private Contents decodeText(BufferedReader in, AesCbcWithIntegrity.SecretKeys passKeys, Listener listener) throws GeneralSecurityException, IOException {
+        in.readLine(); // magic
+        String line = in.readLine();
+        if (line == null)
+            throw new GeneralSecurityException("truncated vault header");
+        AesCbcWithIntegrity.CipherTextIvMac header = new AesCbcWithIntegrity.CipherTextIvMac(line);
+        JSONArray macs = null;
+        try {
+            macs = new JSONObject(AesCbcWithIntegrity.decryptString(header, passKeys, "utf-8")).getJSONArray("records");
+        } catch (Exception e) {
+            Notify.Error("Unreadable vault header, reading records on their own",e);
+        }
+        int count = macs != null ? macs.length() : -1;
+        ArrayList<AccountEntry> accounts = new ArrayList<AccountEntry>();
+        int damaged = 0;
+        int idx = 0;
+        for (; (line = in.readLine()) != null; idx++) {
+            try {
+                AesCbcWithIntegrity.CipherTextIvMac civ = new AesCbcWithIntegrity.CipherTextIvMac(line);
+                String mac = Base64.encodeToString(civ.getMac(), Base64.NO_WRAP);
+                if (macs != null && (idx >= macs.length() || !mac.equals(macs.getString(idx))))
+                    throw new GeneralSecurityException("record "+idx+" does not belong here");
+                AccountEntry entry = AccountEntry.ParseJSON(accounts.size(), AesCbcWithIntegrity.decryptString(civ, passKeys, "utf-8"));
+                if (entry == null)
+                    throw new GeneralSecurityException("record "+idx+" is not an account");
+                accounts.add(entry);
+                if (listener != null)
+                    listener.onAccount(entry, idx, count);
+            } catch (Exception e) {
+                Notify.Error("Skipping damaged vault record "+idx,e);
+                damaged++;
+            }
+        }
+        if (macs != null && macs.length() > idx)
+            damaged += macs.length() - idx;
+        if (macs == null && accounts.isEmpty())
+            throw new GeneralSecurityException("nothing in the vault authenticates");
+        // the records hold JSON, none can be reused in the current format
+        mRecords = new IdentityHashMap<AccountEntry,Record>();
+        mSecrets = new IdentityHashMap<AccountEntry.Secret,Record>();
+        mKeys = passKeys;
+        return new Contents(VaultJournal.BaseId(header), accounts, damaged, false, KdfParams.LEGACY, passKeys);
+    }
+
+    private Contents decodeLegacy(InputStream in, AesCbcWithIntegrity.SecretKeys passKeys, Listener listener) throws GeneralSecurityException, IOException {
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) > 0; ) {
+            all.write(buffer, 0, n);
+        }
+        AesCbcWithIntegrity.CipherTextIvMac civ = new AesCbcWithIntegrity.CipherTextIvMac(all.toString("US-ASCII"));
+        ArrayList<AccountEntry> accounts = new ArrayList<AccountEntry>();
+        try {
+            JSONArray ja = new JSONArray(AesCbcWithIntegrity.decryptString(civ, passKeys, "utf-8"));
+            for (int i = 0; i < ja.length(); i++) {
+                AccountEntry entry = AccountEntry.ParseJSON(i, ja.getString(i));
+                if (entry != null) {
+                    accounts.add(entry);
+                    if (listener != null)
+                        listener.onAccount(entry, i, ja.length());
+                }
+            }
+        } catch (GeneralSecurityException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new GeneralSecurityException("unreadable vault", e);
+        }
+        mRecords = new IdentityHashMap<AccountEntry,Record>();
+        mSecrets = new IdentityHashMap<AccountEntry.Secret,Record>();
+        mKeys = passKeys;
+        return new Contents(VaultJournal.BaseId(civ), accounts, 0, false, KdfParams.LEGACY, passKeys);
+    }
+
+    /**
+     * Encode the accounts as a vault file. Only entries and secrets that were
+     * not part of the last vault decoded or encoded with the same keys are
+     * encrypted, so secrets that were never used stay encrypted throughout.
+     *
+     * @param accounts the accounts
+     * @param passKeys the vault keys
+     * @param kdf      the key derivation parameters the keys were derived with
+     * @return the encoded vault
+     * @throws Exception on encryption failures, or a secret that has to be encrypted again and could not be read
+     */
+    public synchronized Encoded Encode(List<AccountEntry> accounts, AesCbcWithIntegrity.SecretKeys passKeys, KdfParams kdf) throws Exception {
+        Notify.Debug();
+        boolean same = passKeys == mKeys;
+        IdentityHashMap<AccountEntry,Record> known = same ? mRecords : new IdentityHashMap<AccountEntry,Record>();
+        IdentityHashMap<AccountEntry.Secret,Record> knownSecrets = same ? mSecrets : new IdentityHashMap<AccountEntry.Secret,Record>();
+        IdentityHashMap<AccountEntry,Record> records = new IdentityHashMap<AccountEntry,Record>(accounts.size());
+        IdentityHashMap<AccountEntry.Secret,Record> secrets = new IdentityHashMap<AccountEntry.Secret,Record>(accounts.size());
+        Record[] index = new Record[accounts.size()];
+        Record[] secretBlock = new Record[accounts.size()];
+        ByteArrayOutputStream plain = new ByteArrayOutputStream(128);
+        DataOutputStream plainOut = new DataOutputStream(plain);
+        ByteBuffer macs = ByteBuffer.allocate(4 + accounts.size() * (2 * MAC_LENGTH + 4));
+        macs.putInt(accounts.size());
+        int indexLength = 0;
+        int secretOffset = 0;
+        for (int i = 0; i < accounts.size(); i++) {
+            AccountEntry entry = accounts.get(i);
+            Record record = known.get(entry);
+            if (record == null) {
+                plain.reset();
+                entry.writeIndexTo(plainOut);
+                plainOut.flush();
+                record = new Record(AesCbcWithIntegrity.encrypt(plain.toByteArray(), passKeys));
+            }
+            AccountEntry.Secret secret = entry.getSecretHolder();
+            Record secretRecord = knownSecrets.get(secret);
+            if (secretRecord == null) {
+                plain.reset();
+                plainOut.writeUTF(secret.getChecked());
+                plainOut.flush();
+                secretRecord = new Record(AesCbcWithIntegrity.encrypt(plain.toByteArray(), passKeys));
+            }
+            records.put(entry, record);
+            secrets.put(secret, secretRecord);
+            index[i] = record;
+            secretBlock[i] = secretRecord;
+            macs.put(record.getMac());
+            macs.put(secretRecord.getMac());
+            macs.putInt(secretOffset);
+            indexLength += 4 + record.length();
+            secretOffset += 4 + secretRecord.length();
+        }
+        AesCbcWithIntegrity.CipherTextIvMac headerCiv = AesCbcWithIntegrity.encrypt(macs.array(), passKeys);
+        Record header = new Record(headerCiv);
+        ByteBuffer out = ByteBuffer.allocate(MAGIC.length + 1 + KDF_LENGTH + 4 + header.length() + 4 + indexLength + secretOffset);
+        out.put(MAGIC);
+        out.put((byte) VERSION);
+        out.put((byte) kdf.algorithm);
+        out.putInt(kdf.iterations);
+        header.writeTo(out);
+        out.putInt(indexLength);
+        for (Record record : index) {
+            record.writeTo(out);
+        }
+        for (Record record : secretBlock) {
+            record.writeTo(out);
+        }
+        mRecords = records;
+        mSecrets = secrets;
+        mKeys = passKeys;
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(macs.array());
+        return new Encoded(VaultJournal.BaseId(headerCiv), out.array(), digest);
+    }
+}
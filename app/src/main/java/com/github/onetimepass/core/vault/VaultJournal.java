@@ -0,0 +1,526 @@
+package com.github.onetimepass.core.vault;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+import android.util.Base64;
+
+import com.github.onetimepass.core.Notify;
+import com.github.onetimepass.core.account.AccountEntry;
+import com.tozny.crypto.android.AesCbcWithIntegrity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Append-only journal of changes to the vault.
+ *
+ * The vault file (the base) is only rewritten when the journal is compacted.
+ * Every save in between diffs the account list against the journaled state
+ * and appends the changes (add, remove, replace, reorder) as small,
+ * individually encrypted records, synced to disk. Opening replays the
+ * journal over the base.
+ *
+ * The journal is a magic and version, then length-prefixed binary records
+ * framed like those of the vault file, each with its own MAC. A record
+ * holds an op byte and its operands; added and replaced accounts are in
+ * the layout of AccountEntry.writeTo().
+ *
+ * The first record names the base the journal applies to (by the MAC of
+ * the base header), so a journal left behind by an older base is never
+ * replayed. Compaction writes the new base and a new journal holding only
+ * the records appended meanwhile, then swaps both in; should it stop between
+ * the two renames, the new journal is picked up from its ".next" file.
+ */
+public class VaultJournal {
+    /**
+     * Number of records after which Storage should compact the journal into
+     * a fresh base.
+     */
+    public static final int COMPACT_THRESHOLD = 64;
+
+    /**
+     * The magic at the start of a journal.
+     */
+    static final byte[] MAGIC = {'O', 'T', 'P', 'J'};
+    /**
+     * The current format version.
+     */
+    static final int VERSION = 1;
+
+    private static final int OP_BASE = 0;
+    private static final int OP_ADD = 1;
+    private static final int OP_REMOVE = 2;
+    private static final int OP_REPLACE = 3;
+    private static final int OP_REORDER = 4;
+
+    private final File mPath;
+    private final File mNextPath;
+    private String mBaseId = null;
+    private ArrayList<AccountEntry> mState = new ArrayList<AccountEntry>();
+    // the framed records, ready to be written out again
+    private ArrayList<byte[]> mRecords = new ArrayList<byte[]>();
+    private VaultWriter.Durability mDurability = VaultWriter.Durability.FULL;
+
+    /**
+     * Instantiates a new vault journal.
+     *
+     * @param path the journal file
+     */
+    public VaultJournal(File path) {
+        mPath = path;
+        mNextPath = new File(path.getAbsolutePath()+".next");
+    }
+
+    /**
+     * Gets the id of a base vault file, as named by journal headers.
+     *
+     * @param base the encrypted base
+     * @return the base id
+     */
+    public static String BaseId(AesCbcWithIntegrity.CipherTextIvMac base) {
+        return Base64.encodeToString(base.getMac(), Base64.NO_WRAP);
+    }
+
+    /**
+     * Gets the id of the base the journal currently applies to.
+     *
+     * @return the base id, null while changes cannot be journaled
+     */
+    public synchronized String getBaseId() {
+        return mBaseId;
+    }
+
+    /**
+     * Gets the number of records not yet compacted into the base.
+     *
+     * @return the pending count
+     */
+    public synchronized int getPending() {
+        return mRecords.size();
+    }
+
+    /**
+     * Gets a copy of the account list as the base and journal describe it.
+     *
+     * @return the accounts
+     */
+    public synchronized ArrayList<AccountEntry> getState() {
+        return new ArrayList<AccountEntry>(mState);
+    }
+
+    /**
+     * Replay the journal over a freshly loaded base. Reading stops at the
+     * first unreadable record (a torn final write) and the journal is
+     * rewritten without it.
+     *
+     * @param baseId   the id of the loaded base
+     * @param base     the accounts as read from the base
+     * @param passKeys the vault keys
+     * @return the accounts with every journaled change applied
+     */
+    public synchronized ArrayList<AccountEntry> Replay(String baseId, List<AccountEntry> base, AesCbcWithIntegrity.SecretKeys passKeys) {
+        Notify.Debug();
+        mBaseId = null;
+        mState = new ArrayList<AccountEntry>(base);
+        mRecords = new ArrayList<byte[]>();
+        File source = null;
+        if (appliesTo(mPath, baseId, passKeys))
+            source = mPath;
+        else if (appliesTo(mNextPath, baseId, passKeys))
+            source = mNextPath; // compaction stopped between its two renames
+        boolean intact = true;
+        if (source != null) {
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(readAll(source)));
+                readHeader(in, passKeys);
+                for (int left; (left = in.available()) > 0; ) {
+                    AesCbcWithIntegrity.CipherTextIvMac civ;
+                    try {
+                        civ = VaultFile.readRecord(in, left - 4);
+                        if (civ == null)
+                            throw new IOException("torn record length");
+                        apply(AesCbcWithIntegrity.decrypt(civ, passKeys), mState);
+                    } catch (Exception e) {
+                        Notify.Debug("dropping unreadable journal record and everything after it");
+                        intact = false;
+                        break;
+                    }
+                    mRecords.add(frame(civ));
+                }
+            } catch (Exception e) {
+                Notify.Error("Failed to read vault journal",e);
+                intact = false;
+            }
+        }
+        if (source == null) {
+            // stale or missing, the journal is started on the first append
+            if (mPath.exists() && !mPath.delete())
+                Notify.Error("Failed to remove stale vault journal: "+mPath.toString());
+            mBaseId = baseId;
+        } else if (source != mPath || !intact) {
+            if (write(mNextPath, baseId, mRecords, passKeys, VaultWriter.Durability.FULL) && mNextPath.renameTo(mPath))
+                mBaseId = baseId;
+        } else {
+            mBaseId = baseId;
+        }
+        return new ArrayList<AccountEntry>(mState);
+    }
+
+    /**
+     * Journal the changes between the journaled state and the given list.
+     *
+     * @param accounts the accounts as they are now
+     * @param passKeys the vault keys
+     * @return false if the changes could not be journaled and the vault must be saved in full
+     */
+    public synchronized boolean Append(List<AccountEntry> accounts, AesCbcWithIntegrity.SecretKeys passKeys) {
+        Notify.Debug();
+        if (mBaseId == null)
+            return false;
+        try {
+            List<byte[]> ops = diff(mState, accounts);
+            if (ops.isEmpty())
+                return true;
+            if (!mPath.exists()) {
+                if (!write(mPath, mBaseId, mRecords, passKeys, mDurability))
+                    throw new Exception("cannot start the journal");
+                if (mDurability == VaultWriter.Durability.FULL)
+                    VaultWriter.SyncDirectory(mPath.getAbsoluteFile().getParentFile());
+            }
+            ArrayList<byte[]> records = new ArrayList<byte[]>(ops.size());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (byte[] op : ops) {
+                byte[] record = frame(AesCbcWithIntegrity.encrypt(op, passKeys));
+                records.add(record);
+                out.write(record);
+            }
+            FileOutputStream output = new FileOutputStream(mPath, true);
+            try {
+                out.writeTo(output);
+                output.flush();
+                VaultWriter.Sync(output, mDurability);
+            } finally {
+                output.close();
+            }
+            mRecords.addAll(records);
+            mState = new ArrayList<AccountEntry>(accounts);
+            return true;
+        } catch (Exception e) {
+            Notify.Error("Failed to append to vault journal",e);
+            mBaseId = null; // the tail may be torn, only a full save recovers
+        }
+        return false;
+    }
+
+    /**
+     * Sets the durability of appends. Going back to full durability syncs
+     * what was appended meanwhile.
+     *
+     * @param durability the durability
+     */
+    public synchronized void setDurability(VaultWriter.Durability durability) {
+        VaultWriter.Durability previous = mDurability;
+        mDurability = durability;
+        if (previous != VaultWriter.Durability.FULL && durability == VaultWriter.Durability.FULL)
+            VaultWriter.Sync(mPath);
+    }
+
+    /**
+     * Stop journaling, a full save of the base is about to begin.
+     */
+    public synchronized void Invalidate() {
+        mBaseId = null;
+    }
+
+    /**
+     * Start an empty journal over a base that was just saved in full.
+     *
+     * @param baseId   the id of the saved base
+     * @param accounts the accounts saved
+     */
+    public synchronized void Reset(String baseId, List<AccountEntry> accounts) {
+        Notify.Debug();
+        mState = new ArrayList<AccountEntry>(accounts);
+        mRecords = new ArrayList<byte[]>();
+        mBaseId = baseId;
+        if (mPath.exists() && !mPath.delete()) {
+            Notify.Error("Failed to clear vault journal: "+mPath.toString());
+            mBaseId = null;
+        }
+    }
+
+    /**
+     * Swap in a compacted base. The records appended since the compaction
+     * took its snapshot carry over to the new journal.
+     *
+     * @param pending   the new base, fully written and synced (VaultWriter.Stage())
+     * @param base      the base file to replace
+     * @param oldBaseId the id of the base the snapshot was taken over
+     * @param newBaseId the id of the new base
+     * @param applied   the number of records the snapshot includes
+     * @param passKeys  the vault keys
+     * @return false if the journal moved on (full save, new keys) or the swap failed
+     */
+    public synchronized boolean Commit(File pending, File base, String oldBaseId, String newBaseId, int applied, AesCbcWithIntegrity.SecretKeys passKeys) {
+        Notify.Debug();
+        if (mBaseId == null || !mBaseId.equals(oldBaseId) || applied > mRecords.size())
+            return false;
+        ArrayList<byte[]> tail = new ArrayList<byte[]>(mRecords.subList(applied, mRecords.size()));
+        // synced whatever the durability, it is renamed into place
+        if (!write(mNextPath, newBaseId, tail, passKeys, VaultWriter.Durability.FULL))
+            return false;
+        if (!pending.renameTo(base)) {
+            Notify.Error("Failed to swap in compacted vault: "+base.toString());
+            mNextPath.delete();
+            return false;
+        }
+        mRecords = tail;
+        if (mNextPath.renameTo(mPath)) {
+            mBaseId = newBaseId;
+        } else {
+            // picked up from the .next file on open, until then save in full
+            Notify.Error("Failed to swap in compacted journal: "+mPath.toString());
+            mBaseId = null;
+        }
+        if (mDurability == VaultWriter.Durability.FULL)
+            VaultWriter.SyncDirectory(base.getAbsoluteFile().getParentFile());
+        return true;
+    }
+
+    private boolean appliesTo(File file, String baseId, AesCbcWithIntegrity.SecretKeys passKeys) {
+        if (!file.exists())
+            return false;
+        try {
+            InputStream input = new FileInputStream(file);
+            try {
+                return baseId.equals(readHeader(new DataInputStream(input), passKeys));
+            } finally {
+                input.close();
+            }
+        } catch (Exception e) {
+            Notify.Debug("unreadable vault journal header: "+file.toString());
+        }
+        return false;
+    }
+
+    /**
+     * Read the magic, version and header record.
+     *
+     * @return the id of the base the journal applies to
+     */
+    private static String readHeader(DataInputStream in, AesCbcWithIntegrity.SecretKeys passKeys) throws GeneralSecurityException, IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i])
+                throw new IOException("not a vault journal");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION)
+            throw new IOException("unsupported vault journal version: "+version);
+        AesCbcWithIntegrity.CipherTextIvMac header = VaultFile.readRecord(in, 1024); // a base id, far smaller
+        if (header == null)
+            throw new IOException("truncated vault journal header");
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(AesCbcWithIntegrity.decrypt(header, passKeys)));
+        if (data.readUnsignedByte() != OP_BASE)
+            throw new IOException("vault journal without a header");
+        return data.readUTF();
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        ByteArrayOutputStream all = new ByteArrayOutputStream((int) file.length());
+        InputStream input = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            for (int n; (n = input.read(buffer)) > 0; ) {
+                all.write(buffer, 0, n);
+            }
+        } finally {
+            input.close();
+        }
+        return all.toByteArray();
+    }
+
+    private static boolean write(File file, String baseId, List<byte[]> records, AesCbcWithIntegrity.SecretKeys passKeys, VaultWriter.Durability durability) {
+        try {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream headerOut = new DataOutputStream(header);
+            headerOut.writeByte(OP_BASE);
+            headerOut.writeUTF(baseId);
+            headerOut.flush();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(MAGIC);
+            out.write(VERSION);
+            out.write(frame(AesCbcWithIntegrity.encrypt(header.toByteArray(), passKeys)));
+            for (byte[] record : records) {
+                out.write(record);
+            }
+            FileOutputStream output = new FileOutputStream(file, false);
+            try {
+                out.writeTo(output);
+                output.flush();
+                VaultWriter.Sync(output, durability);
+            } finally {
+                output.close();
+            }
+            return true;
+        } catch (Exception e) {
+            Notify.Error("Failed to write vault journal: "+file.toString(),e);
+        }
+        return false;
+    }
+
+    private static byte[] frame(AesCbcWithIntegrity.CipherTextIvMac civ) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        VaultFile.writeRecord(out, civ);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Make an op record. writeTo() fails for an unreadable secret, so ""
+     * is never journaled in its place.
+     */
+    private static byte[] makeOp(int op, int index, AccountEntry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(op);
+        out.writeInt(index);
+        if (entry != null)
+            entry.writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static IdentityHashMap<AccountEntry,Integer> indexOf(List<AccountEntry> list) {
+        IdentityHashMap<AccountEntry,Integer> index = new IdentityHashMap<AccountEntry,Integer>(list.size());
+        for (int i = 0; i < list.size(); i++) {
+            index.put(list.get(i), i);
+        }
+        return index;
+    }
+
+    /**
+     * Work out the records turning one list into the other. Entries are
+     * immutable, so they are matched by identity.
+     */
+    private static List<byte[]> diff(List<AccountEntry> from, List<AccountEntry> to) throws IOException {
+        ArrayList<byte[]> ops = new ArrayList<byte[]>();
+        ArrayList<AccountEntry> work = new ArrayList<AccountEntry>(from);
+        IdentityHashMap<AccountEntry,Integer> inFrom = indexOf(from);
+        IdentityHashMap<AccountEntry,Integer> inTo = indexOf(to);
+        // edited in place
+        for (int i = 0; i < work.size() && i < to.size(); i++) {
+            AccountEntry was = work.get(i);
+            AccountEntry now = to.get(i);
+            if (was != now && !inTo.containsKey(was) && !inFrom.containsKey(now)) {
+                ops.add(makeOp(OP_REPLACE, i, now));
+                work.set(i, now);
+            }
+        }
+        // removed
+        for (int i = work.size(); i-- > 0; ) {
+            if (!inTo.containsKey(work.get(i))) {
+                ops.add(makeOp(OP_REMOVE, i, null));
+                work.remove(i);
+            }
+        }
+        // added
+        IdentityHashMap<AccountEntry,Integer> inWork = indexOf(work);
+        for (AccountEntry ae : to) {
+            if (!inWork.containsKey(ae)) {
+                ops.add(makeOp(OP_ADD, work.size(), ae));
+                inWork.put(ae, work.size());
+                work.add(ae);
+            }
+        }
+        // reordered
+        if (!sameOrder(work, to)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(OP_REORDER);
+            out.writeInt(to.size());
+            for (AccountEntry ae : to) {
+                out.writeInt(inWork.get(ae));
+            }
+            out.flush();
+            ops.add(bytes.toByteArray());
+        }
+        return ops;
+    }
+
+    private static boolean sameOrder(List<AccountEntry> a, List<AccountEntry> b) {
+        if (a.size() != b.size())
+            return false;
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i) != b.get(i))
+                return false;
+        }
+        return true;
+    }
+
+    private static void apply(byte[] op, ArrayList<AccountEntry> state) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(op));
+        int name = in.readUnsignedByte();
+        int index = in.readInt();
+        switch (name) {
+            case OP_ADD:
+                checkIndex(index, state.size() + 1);
+                state.add(index, AccountEntry.ReadFrom(index, in));
+                break;
+            case OP_REMOVE:
+                checkIndex(index, state.size());
+                state.remove(index);
+                break;
+            case OP_REPLACE:
+                checkIndex(index, state.size());
+                state.set(index, AccountEntry.ReadFrom(index, in));
+                break;
+            case OP_REORDER:
+                if (index != state.size())
+                    throw new IOException("reorder of "+index+" entries over "+state.size());
+                ArrayList<AccountEntry> reordered = new ArrayList<AccountEntry>(state.size());
+                for (int i = 0; i < index; i++) {
+                    int from = in.readInt();
+                    checkIndex(from, state.size());
+                    reordered.add(state.get(from));
+                }
+                state.clear();
+                state.addAll(reordered);
+                break;
+            default:
+                throw new IOException("unknown journal op: "+name);
+        }
+    }
+
+    private static void checkIndex(int index, int size) throws IOException {
+        if (index < 0 || index >= size)
+            throw new IOException("journal index "+index+" out of range "+size);
+    }
+}
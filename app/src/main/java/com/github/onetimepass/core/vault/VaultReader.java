@@ -0,0 +1,173 @@
+package com.github.onetimepass.core.vault;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import com.github.onetimepass.core.Notify;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Opens vault files for VaultFile.Decode().
+ *
+ * Regular files are read through their FileChannel: small vaults are read
+ * completely into one buffer (looping until the channel is exhausted, reads
+ * may return short), larger ones are memory-mapped and decoded straight from
+ * the mapping. Either way the file is closed before decoding starts, and the
+ * returned stream supports mark/reset so no further buffering is layered on
+ * top. Content that is not a whole regular file (pipes, a range of an
+ * asset, providers serving streams only) is streamed from the provider's
+ * input stream as is.
+ */
+public final class VaultReader {
+    /**
+     * Vaults at least this large are memory-mapped instead of read.
+     */
+    static final long MAP_THRESHOLD = 256 * 1024;
+
+    private VaultReader() {}
+
+    /**
+     * Open a vault file.
+     *
+     * @param path the path
+     * @return the vault contents
+     * @throws IOException on read failures
+     */
+    public static InputStream Open(File path) throws IOException {
+        return read(new FileInputStream(path));
+    }
+
+    /**
+     * Open a vault handed over as a content:// uri. A uri backed by a whole
+     * regular file is read through its descriptor, anything else through
+     * ContentResolver.openInputStream().
+     *
+     * @param resolver the content resolver
+     * @param uri      the uri
+     * @return the vault contents
+     * @throws IOException on read failures
+     */
+    public static InputStream Open(ContentResolver resolver, Uri uri) throws IOException {
+        ParcelFileDescriptor fd = null;
+        try {
+            fd = resolver.openFileDescriptor(uri, "r");
+        } catch (FileNotFoundException e) {
+            // a range of an asset, or no descriptor at all
+            Notify.Debug("no file descriptor, streaming",e);
+        }
+        if (fd != null && fd.getStatSize() >= 0)
+            return read(new ParcelFileDescriptor.AutoCloseInputStream(fd));
+        if (fd != null) {
+            Notify.Debug("not a regular file, streaming");
+            fd.close();
+        }
+        InputStream in = resolver.openInputStream(uri);
+        if (in == null)
+            throw new FileNotFoundException("cannot open "+uri);
+        return in;
+    }
+
+    private static InputStream read(FileInputStream in) throws IOException {
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("vault too large: "+size);
+            ByteBuffer buffer;
+            if (size >= MAP_THRESHOLD) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                buffer = ByteBuffer.allocate((int) size);
+                for (long position = 0; buffer.hasRemaining(); ) {
+                    int n = channel.read(buffer, position);
+                    if (n < 0)
+                        break; // shrunk while reading, decode what is there
+                    position += n;
+                }
+                buffer.flip();
+            }
+            Notify.Debug("read "+buffer.remaining()+" bytes");
+            return new BufferInputStream(buffer);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * An input stream over a (possibly mapped) byte buffer.
+     */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!mBuffer.hasRemaining())
+                return -1;
+            len = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            mBuffer.mark();
+        }
+
+        @Override
+        public synchronized void reset() {
+            mBuffer.reset();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.github.onetimepass.core.vault;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import com.github.onetimepass.core.Notify;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Crash-safe writes of vault files.
+ *
+ * The new contents go to a temporary file next to the target, which is
+ * synced and then renamed over the target, so at any point there is either
+ * the old or the new file in place, never none or half of one. The
+ * directory is synced afterwards to make the rename itself durable.
+ *
+ * The syncs are what makes a write expensive. Bulk operations can relax
+ * the durability to skip the directory syncs and the syncs of appends, and
+ * sync everything once when they are done. The temporary file is always
+ * synced before the rename: without that, a crash can leave the rename in
+ * place over data that never reached the disk, an empty file on ext4 and
+ * f2fs.
+ */
+public final class VaultWriter {
+    /**
+     * How much syncing a write does.
+     */
+    public enum Durability {
+        /**
+         * Sync the file and its directory on every write.
+         */
+        FULL,
+        /**
+         * Skip the directory and append syncs, for bulk operations that sync
+         * once at the end. Writes stay atomic but a crash may lose the last
+         * of them.
+         */
+        RELAXED
+    }
+
+    private VaultWriter() {}
+
+    /**
+     * Atomically replace the target with the given contents.
+     *
+     * @param target     the file to replace
+     * @param bytes      the new contents
+     * @param durability the durability
+     * @throws IOException if the target could not be replaced, it is left untouched
+     */
+    public static void Write(File target, byte[] bytes, Durability durability) throws IOException {
+        Notify.Debug();
+        File temp = Stage(target, ".tmp", bytes);
+        if (!temp.renameTo(target)) {
+            if (!temp.delete())
+                Notify.Error("Failed to cleanup temporary file: "+temp.toString());
+            throw new IOException("cannot rename "+temp+" to "+target);
+        }
+        if (durability == Durability.FULL)
+            SyncDirectory(target.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Write the new contents of the target to a temporary file next to it,
+     * to be renamed over the target by the caller. The file is synced
+     * whatever the durability, since it is renamed into place.
+     *
+     * @param target the file to replace
+     * @param suffix the suffix of the temporary file
+     * @param bytes  the new contents
+     * @return the temporary file
+     * @throws IOException on write failures, the temporary file is removed
+     */
+    public static File Stage(File target, String suffix, byte[] bytes) throws IOException {
+        File temp = new File(target.getAbsolutePath()+suffix);
+        try {
+            FileOutputStream output = new FileOutputStream(temp, false);
+            try {
+                output.write(bytes);
+                output.flush();
+                // whatever the durability, never rename unsynced data into place
+                output.getFD().sync();
+            } finally {
+                output.close();
+            }
+        } catch (IOException e) {
+            if (temp.exists() && !temp.delete())
+                Notify.Error("Failed to cleanup temporary file: "+temp.toString());
+            throw e;
+        }
+        return temp;
+    }
+
+    /**
+     * Sync an open file, unless the durability is relaxed.
+     *
+     * @param output     the file
+     * @param durability the durability
+     * @throws IOException on sync failures
+     */
+    public static void Sync(FileOutputStream output, Durability durability) throws IOException {
+        if (durability == Durability.FULL)
+            output.getFD().sync();
+    }
+
+    /**
+     * Sync a file and its directory, after writes with relaxed durability.
+     * Missing files are skipped.
+     *
+     * @param file the file
+     */
+    public static void Sync(File file) {
+        if (!file.exists())
+            return;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.getFD().sync();
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Notify.Error("Failed to sync "+file.toString(),e);
+        }
+        SyncDirectory(file.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Sync a directory, making renames and deletions in it durable. Not all
+     * filesystems support this; failures are only logged.
+     *
+     * @param dir the directory
+     */
+    public static void SyncDirectory(File dir) {
+        if (dir == null)
+            return;
+        try {
+            FileDescriptor fd = Os.open(dir.getPath(), OsConstants.O_RDONLY, 0);
+            try {
+                Os.fsync(fd);
+            } finally {
+                Os.close(fd);
+            }
+        } catch (ErrnoException e) {
+            Notify.Debug("cannot sync directory "+dir.toString(),e);
+        }
+    }
+}
@@ -28,6 +28,7 @@ import android.widget.TextView;
 
 import com.github.onetimepass.R;
 import com.github.onetimepass.core.Notify;
+import com.github.onetimepass.core.Storage;
 import com.github.onetimepass.core.account.AccountEntry;
 import com.github.onetimepass.core.SupportBar;
 import com.github.onetimepass.core.Utility;
@@ -53,6 +54,7 @@ public class AccountEditScreen extends Screen {
     private TextView mSecretLabel;
 
     private AccountEntry mOriginal = null;
+    private AccountEntry mTemplate = null;
 
     /**
      * Setup a new instance of the Account Edit Screen and register any control
@@ -173,11 +175,14 @@ public class AccountEditScreen extends Screen {
 
     private void processInboundData() {
         Notify.Debug();
+        mTemplate = null;
         String[] argv = getInboundData();
         if (argv != null && argv.length > 0) {
             Uri uri = Uri.parse(argv[0]);
             mOriginal = getStorage().FindAccount(uri);
             if (mOriginal == null) {
+                // keep the otpauth parameters (algorithm, digits, period)
+                mTemplate = AccountEntry.Create(uri);
                 mLabel.setText(uri.getPath().substring(1)); // substr the '/' off the path
                 mIssuer.setText(uri.getQueryParameter("issuer"));
                 mSecret.setText(uri.getQueryParameter("secret"));
@@ -199,11 +204,16 @@ public class AccountEditScreen extends Screen {
 
     private void SaveNewAccount() {
         Notify.Debug();
-        AccountEntry e = AccountEntry.Create(
-                mLabel.getText().toString(),
-                mIssuer.getText().toString(),
-                mSecret.getText().toString().toUpperCase()
-        );
+        String label = mLabel.getText().toString();
+        String issuer = mIssuer.getText().toString();
+        String secret = mSecret.getText().toString().toUpperCase();
+        AccountEntry e;
+        if (mOriginal != null)
+            e = mOriginal.Edit(label, issuer, secret);
+        else if (mTemplate != null)
+            e = mTemplate.Edit(label, issuer, secret);
+        else
+            e = AccountEntry.Create(label, issuer, secret);
         SupportBar.getInstance().ShowSpinnerBox(R.string.account_adding,e.toStringTitle());
         if (mOriginal != null) {
             getStorage().ReplaceAccount(mOriginal,e);
@@ -212,7 +222,7 @@ public class AccountEditScreen extends Screen {
                 Notify.Debug("Failed to AddAccount?!");
             }
         }
-        getStorage().Save();
+        Storage.PerformOperation(getController(), Storage.Op.SAVE, null);
     }
 
 
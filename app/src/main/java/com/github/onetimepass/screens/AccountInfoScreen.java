@@ -48,10 +48,11 @@ import com.github.onetimepass.core.SupportBar;
 import com.github.onetimepass.core.account.AccountEntry;
 import com.github.onetimepass.core.control.Configuration;
 import com.github.onetimepass.core.control.Controller;
+import com.github.onetimepass.core.otp.OtpClock;
+import com.github.onetimepass.core.otp.OtpCode;
+import com.github.onetimepass.core.otp.OtpGenerator;
 import com.github.onetimepass.core.screen.Screen;
 
-import java.util.Date;
-
 import static android.content.Context.CLIPBOARD_SERVICE;
 
 
@@ -72,6 +73,7 @@ public class AccountInfoScreen extends Screen {
     private ViewSwitcher mDetailsFlipper;
     private ImageView mQrCodeView;
     private Bitmap mQrCodeBitmap;
+    private final OtpCode mCode = new OtpCode();
 
     private Handler mHandlerProgress;
     private boolean mReturnAfterEdit = false;
@@ -113,6 +115,7 @@ public class AccountInfoScreen extends Screen {
         ImageView mQrCodeIcon = layout.findViewById(R.id.account_qrcode_icon);
 
         mHandlerProgress = new Handler(Looper.getMainLooper());
+        mCode.clear(); // fresh views, render on the first update
 
         String[] argv = getInboundData();
         if (argv != null && argv.length > 0) {
@@ -161,13 +164,19 @@ public class AccountInfoScreen extends Screen {
                     @Override
                     public void onClick(View v) {
                         Notify.Debug();
+                        OtpClock.getInstance().tick();
+                        if (mAccountEntry.isCounterBased()) {
+                            // like a hardware token button, each press produces the next code
+                            mAccountEntry = getStorage().AdvanceCounter(mAccountEntry);
+                            updateViews();
+                        }
                         final Activity activity = getController();
                         ClipboardManager clipboard = (ClipboardManager) activity.getSystemService(CLIPBOARD_SERVICE);
-                        ClipData clip = ClipData.newPlainText("text", mAccountEntry.totpString());
+                        ClipData clip = ClipData.newPlainText("text", codeString());
                         if (clipboard != null) {
                             clipboard.setPrimaryClip(clip);
                         }
-                        long ms = getSecretTimeDelta();
+                        long ms = getClipboardDelay();
                         Notify.Short(getController(),R.string.clipboard_expires_in,(ms/1000));
                         Intent intentToFire = new Intent(activity.getApplicationContext(), AlarmBroadcastReceiver.class);
                         intentToFire.setAction(Constants.ACTION_ALARM);
@@ -186,7 +195,7 @@ public class AccountInfoScreen extends Screen {
                             if (alarmManager != null) {
                                 alarmManager.setExactAndAllowWhileIdle(
                                         AlarmManager.ELAPSED_REALTIME_WAKEUP,
-                                        getSecretTimeElapsedDelta(),
+                                        getClipboardElapsedTime(),
                                         alarmIntent
                                 );
                             }
@@ -194,7 +203,7 @@ public class AccountInfoScreen extends Screen {
                             if (alarmManager != null) {
                                 alarmManager.setExact(
                                         AlarmManager.ELAPSED_REALTIME_WAKEUP,
-                                        getSecretTimeElapsedDelta(),
+                                        getClipboardElapsedTime(),
                                         alarmIntent
                                 );
                             }
@@ -202,7 +211,7 @@ public class AccountInfoScreen extends Screen {
                             if (alarmManager != null) {
                                 alarmManager.set(
                                         AlarmManager.ELAPSED_REALTIME_WAKEUP,
-                                        getSecretTimeElapsedDelta(),
+                                        getClipboardElapsedTime(),
                                         alarmIntent
                                 );
                             }
@@ -211,6 +220,7 @@ public class AccountInfoScreen extends Screen {
                 }
         );
 
+        OtpClock.getInstance().tick();
         updateViews();
         startSecretTimer();
         SupportBar.getInstance().HideAll();
@@ -255,7 +265,7 @@ public class AccountInfoScreen extends Screen {
                                         Notify.Debug();
                                         Storage storage = Storage.getInstance(getController());
                                         if (storage.RemoveAccount(mAccountEntry))
-                                            storage.Save();
+                                            storage.ScheduleSave();
                                         getController().performControlAction("default");
                                     }
                                 },
@@ -272,44 +282,59 @@ public class AccountInfoScreen extends Screen {
 
 
 
+    private String codeString() {
+        int code = getStorage().GetCodeCache().getCode(mAccountEntry);
+        return mAccountEntry.formatCode(code);
+    }
+
     private void updateViews() {
         if (mAccountEntry != null) {
-            mSecretView.setText(mAccountEntry.totpString());
+            int code = getStorage().GetCodeCache().getCode(mAccountEntry);
+            // only touch the view when the code changed; the TextView shows the buffer as-is
+            if (mAccountEntry.renderCode(code, false, mCode))
+                mSecretView.setText(mCode.getChars(), 0, mCode.length());
             mLabelView.setText(mAccountEntry.getLabel());
             mIssuerView.setText(mAccountEntry.getIssuer());
+            mProgressView.setVisibility(mAccountEntry.isCounterBased() ? View.INVISIBLE : View.VISIBLE);
         }
-        long n = getSecretTimeDelta();
-        double p = (double)n / 30000.0 * 100.0;
-        mProgressView.setProgress((int)p);
+        mProgressView.setProgress(getProgress());
+    }
+
+    private int getPeriod() {
+        return mAccountEntry != null ? mAccountEntry.getPeriod() : OtpGenerator.DEFAULT_PERIOD;
+    }
+
+    private int getProgress() {
+        return (int) (getSecretTimeDelta() * 100 / (getPeriod() * 1000L));
     }
 
     private long getSecretTimeDelta() {
-        long msTime = System.currentTimeMillis();
-        Date curDateTime = new Date(msTime);
-        int sec = curDateTime.getSeconds();
-        int delay;
-        if (sec < 30) {
-            delay = 1000 * (30-sec);
-        } else {
-            delay = 1000 * (60-sec);
-        }
-        return delay;
+        return OtpClock.getInstance().getMillisUntilNextStep(getPeriod());
+    }
+
+    /**
+     * How long a copied code stays on the clipboard: until the step ends for
+     * time-based codes, a fixed delay for counter codes which never expire.
+     */
+    private long getClipboardDelay() {
+        if (mAccountEntry.isCounterBased())
+            return Constants.HOTP_CLIPBOARD_DELAY;
+        return getSecretTimeDelta();
     }
 
-    private long getSecretTimeElapsedDelta() {
+    private long getClipboardElapsedTime() {
         long msTime = SystemClock.elapsedRealtime();
-        return msTime + getSecretTimeDelta();
+        return msTime + getClipboardDelay();
     }
 
     private void startSecretTimer() {
         Notify.Debug();
         mHandlerProgress.postDelayed(new Runnable() {
             public void run() {
-                long n = getSecretTimeDelta();
-                double p = (double)n / 30000.0 * 100.0;
-                if (p <= 4.0 || p >= 100.0)
-                    updateViews();
-                mProgressView.setProgress((int)p);
+                // one clock read per frame, the code and countdown both use it;
+                // the code view is only touched when the code changed
+                OtpClock.getInstance().tick();
+                updateViews();
                 mHandlerProgress.postDelayed(this, 250);
             }
         }, 250);
@@ -155,8 +155,8 @@ public class AccountListScreen extends Screen
     @Override
     public void onListInteraction(List<AccountEntry> entries) {
         Notify.Debug();
-        if (!getStorage().ReplaceAccountListAndSave(entries)) {
-            Notify.Debug("Failed to replace the account list and save.");
+        if (!getStorage().ReplaceAccountList(entries)) {
+            Notify.Debug("Failed to replace the account list.");
         }
     }
 
@@ -222,6 +222,14 @@ public class AccountListScreen extends Screen
                 Notify.Debug("action_export");
                 getController().transitionToScreen("export");
                 return true;
+            case R.id.action_switch_vault:
+                Notify.Debug("action_switch_vault");
+                getController().performControlAction("switch_vault");
+                return true;
+            case R.id.action_restore_backup:
+                Notify.Debug("action_restore_backup");
+                getController().performControlAction("restore_backup");
+                return true;
             default:
                 Notify.Debug("unknown menu item");
                 break;
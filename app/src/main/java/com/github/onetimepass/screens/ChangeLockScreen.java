@@ -208,7 +208,7 @@ public class ChangeLockScreen extends Screen {
                         final String p1 = mPassConfirm.getText().toString();
                         Storage.PerformOperation(
                                 getController(),
-                                "change",
+                                Storage.Op.CHANGE,
                                 old,
                                 p1,
                                 new Storage.Operation() {
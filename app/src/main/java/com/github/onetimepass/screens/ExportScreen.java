@@ -277,7 +277,7 @@ final public class ExportScreen extends Screen {
         }
         Storage.PerformOperation(
                 getController(),
-                "export",
+                Storage.Op.EXPORT,
                 pass,
                 mChosenFilePath.toString(),
                 new Storage.Operation() {
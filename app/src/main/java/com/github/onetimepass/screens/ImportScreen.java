@@ -271,6 +271,11 @@ final public class ImportScreen extends Screen {
                 return;
         }
         if (inputStream != null) {
+            try {
+                inputStream.close(); // only checking it can be opened, it is read on import
+            } catch (Exception e) {
+                Notify.Debug("failed to close probe stream",e);
+            }
             SupportBar.getInstance().ShowYesNoBox(
                     R.string.account_inbound_uri,
                     R.string.account_inbound_uri_content,
@@ -342,7 +347,7 @@ final public class ImportScreen extends Screen {
         }
         Storage.PerformOperation(
                 getController(),
-                merge ? "import-merge" : "import-replace",
+                merge ? Storage.Op.IMPORT_MERGE : Storage.Op.IMPORT_REPLACE,
                 pass,
                 source,
                 new Storage.Operation() {
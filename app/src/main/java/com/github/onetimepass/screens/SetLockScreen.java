@@ -86,14 +86,23 @@ final public class SetLockScreen extends Screen {
                         SupportBar.getInstance().ShowSpinnerBox(R.string.storage_setting_up);
                         Storage.PerformOperation(
                                 controller,
-                                "open",
+                                Storage.Op.OPEN,
                                 data[0],
                                 new Storage.Operation() {
                                     @Override
                                     public void onStorageSuccess(Context context, Storage instance) {
                                         Notify.Debug();
-                                        instance.Close();
-                                        controller.performControlAction("default");
+                                        Storage.PerformOperation(controller, Storage.Op.CLOSE, new Storage.Operation() {
+                                            @Override
+                                            public void onStorageSuccess(Context context, Storage instance) {
+                                                controller.performControlAction("default");
+                                            }
+
+                                            @Override
+                                            public void onStorageFailure() {
+                                                controller.performControlAction("default");
+                                            }
+                                        });
                                     }
 
                                     @Override
@@ -84,7 +84,7 @@ final public class UnLockScreen extends Screen {
                     public void performAction(final Context context, final String[] data) {
                         Storage.PerformOperation(
                                 controller,
-                                "close",
+                                Storage.Op.CLOSE,
                                 new Storage.Operation() {
                                     @Override
                                     public void onStorageSuccess(Context context, Storage instance) {
@@ -123,7 +123,7 @@ final public class UnLockScreen extends Screen {
                     public void performAction(final Context context, final String[] data) {
                         Storage.PerformOperation(
                                 controller,
-                                "open",
+                                Storage.Op.OPEN,
                                 data[0],
                                 new Storage.Operation() {
                                     @Override
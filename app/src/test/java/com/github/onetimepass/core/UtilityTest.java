@@ -0,0 +1,65 @@
+package com.github.onetimepass.core;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+import android.net.Uri;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.*;
+
+/**
+ * Scanned and inbound otpauth URIs are checked before an account is made of
+ * them.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class UtilityTest {
+    private static boolean verify(String query) {
+        return Utility.verifyOtpauthUri(Uri.parse("otpauth://totp/alice?secret=JBSWY3DPEHPK3PXP"+query));
+    }
+
+    @Test
+    public void acceptsDefaultAndSupportedParameters() {
+        assertTrue(verify(""));
+        assertTrue(verify("&digits=6&period=30"));
+        assertTrue(verify("&digits=8&period=60"));
+        assertTrue(Utility.verifyOtpauthUri(Uri.parse("otpauth://hotp/alice?secret=JBSWY3DPEHPK3PXP&counter=3")));
+    }
+
+    @Test
+    public void rejectsUnsupportedDigits() {
+        assertFalse(verify("&digits=5"));
+        assertFalse(verify("&digits=9"));
+        assertFalse(verify("&digits=10"));
+        assertFalse(verify("&digits=six"));
+    }
+
+    @Test
+    public void rejectsUnsupportedPeriods() {
+        assertFalse(verify("&period=0"));
+        assertFalse(verify("&period=-30"));
+        assertFalse(verify("&period=thirty"));
+    }
+
+    @Test
+    public void rejectsMissingSecretOrWrongScheme() {
+        assertFalse(Utility.verifyOtpauthUri(Uri.parse("otpauth://totp/alice?issuer=Example")));
+        assertFalse(Utility.verifyOtpauthUri(Uri.parse("https://totp/alice?secret=JBSWY3DPEHPK3PXP")));
+    }
+}
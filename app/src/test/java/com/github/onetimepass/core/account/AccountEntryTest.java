@@ -0,0 +1,129 @@
+package com.github.onetimepass.core.account;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+import android.net.Uri;
+
+import com.github.onetimepass.core.otp.OtpGenerator;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Every way an entry is read rejects code parameters no code can be
+ * generated for, instead of failing later on the code screens.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class AccountEntryTest {
+    private static final String SECRET = "JBSWY3DPEHPK3PXP";
+
+    private static String json(int digits, int period) {
+        return "{\"label\":\"alice\",\"issuer\":\"Example\",\"secret\":\""+SECRET+"\","
+                + "\"digits\":"+digits+",\"period\":"+period+"}";
+    }
+
+    private static byte[] binary(boolean withSecret, int digits, int period) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(withSecret ? AccountEntry.BINARY_VERSION : AccountEntry.INDEX_VERSION);
+        out.writeUTF("alice");
+        out.writeUTF("Example");
+        if (withSecret)
+            out.writeUTF(SECRET);
+        out.writeUTF("totp");
+        out.writeLong(0);
+        out.writeUTF("SHA1");
+        out.writeByte(digits);
+        out.writeInt(period);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static DataInputStream in(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    @Test
+    public void parseJSONAcceptsSupportedParameters() {
+        AccountEntry entry = AccountEntry.ParseJSON(0, json(8, 60));
+        assertNotNull(entry);
+        assertEquals(8, entry.getDigits());
+        assertEquals(60, entry.getPeriod());
+    }
+
+    @Test
+    public void parseJSONRejectsUnsupportedParameters() {
+        assertNull(AccountEntry.ParseJSON(0, json(OtpGenerator.DEFAULT_DIGITS, 0)));
+        assertNull(AccountEntry.ParseJSON(0, json(OtpGenerator.DEFAULT_DIGITS, -30)));
+        assertNull(AccountEntry.ParseJSON(0, json(OtpGenerator.MIN_DIGITS - 1, OtpGenerator.DEFAULT_PERIOD)));
+        assertNull(AccountEntry.ParseJSON(0, json(OtpGenerator.MAX_DIGITS + 1, OtpGenerator.DEFAULT_PERIOD)));
+        assertNull(AccountEntry.ParseJSON(0, json(10, OtpGenerator.DEFAULT_PERIOD)));
+    }
+
+    @Test
+    public void readFromAcceptsSupportedParameters() throws IOException {
+        AccountEntry entry = AccountEntry.ReadFrom(0, in(binary(true, 7, 45)));
+        assertEquals(SECRET, entry.getSecret());
+        assertEquals(7, entry.getDigits());
+        assertEquals(45, entry.getPeriod());
+    }
+
+    @Test(expected = IOException.class)
+    public void readFromRejectsZeroPeriod() throws IOException {
+        AccountEntry.ReadFrom(0, in(binary(true, OtpGenerator.DEFAULT_DIGITS, 0)));
+    }
+
+    @Test(expected = IOException.class)
+    public void readFromRejectsTooManyDigits() throws IOException {
+        AccountEntry.ReadFrom(0, in(binary(true, 10, OtpGenerator.DEFAULT_PERIOD)));
+    }
+
+    @Test(expected = IOException.class)
+    public void readIndexFromRejectsZeroPeriod() throws IOException {
+        AccountEntry.ReadIndexFrom(0, in(binary(false, OtpGenerator.DEFAULT_DIGITS, 0)), null);
+    }
+
+    @Test(expected = IOException.class)
+    public void readIndexFromRejectsTooFewDigits() throws IOException {
+        AccountEntry.ReadIndexFrom(0, in(binary(false, 4, OtpGenerator.DEFAULT_PERIOD)), null);
+    }
+
+    @Test
+    public void writeToRoundTrips() throws IOException {
+        AccountEntry entry = AccountEntry.ParseJSON(0, json(8, 60));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        entry.writeTo(new DataOutputStream(bytes));
+        assertEquals(entry, AccountEntry.ReadFrom(0, in(bytes.toByteArray())));
+    }
+
+    @Test
+    public void createFromUriRejectsUnsupportedParameters() {
+        assertNotNull(AccountEntry.Create(Uri.parse("otpauth://totp/alice?secret="+SECRET)));
+        assertNotNull(AccountEntry.Create(Uri.parse("otpauth://totp/alice?secret="+SECRET+"&digits=8&period=60")));
+        assertNull(AccountEntry.Create(Uri.parse("otpauth://totp/alice?secret="+SECRET+"&period=0")));
+        assertNull(AccountEntry.Create(Uri.parse("otpauth://totp/alice?secret="+SECRET+"&digits=10")));
+    }
+}
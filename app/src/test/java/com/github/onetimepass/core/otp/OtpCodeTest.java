@@ -0,0 +1,94 @@
+package com.github.onetimepass.core.otp;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rendering and parsing codes at the digit, grouping and value boundaries.
+ */
+public class OtpCodeTest {
+    private static String render(int code, int digits, boolean grouped) {
+        char[] out = new char[OtpCode.MAX_LENGTH];
+        return new String(out, 0, OtpCode.Render(code, digits, grouped, out, 0));
+    }
+
+    @Test
+    public void renderPadsAndGroups() {
+        assertEquals("000000", render(0, 6, false));
+        assertEquals("000 000", render(0, 6, true));
+        assertEquals("012345", render(12345, 6, false));
+        assertEquals("999 999", render(999999, 6, true));
+        assertEquals("123 4567", render(1234567, 7, true));
+        assertEquals("0123 4567", render(1234567, 8, true));
+        assertEquals("99999999", render(99999999, 8, false));
+    }
+
+    @Test
+    public void renderNegativeAsZeros() {
+        assertEquals("000000", render(-1, 6, false));
+        assertEquals("0000 0000", render(Integer.MIN_VALUE, 8, true));
+    }
+
+    @Test
+    public void renderLongestFitsTheBuffer() {
+        assertEquals(OtpCode.MAX_LENGTH, render(12345678, OtpGenerator.MAX_DIGITS, true).length());
+    }
+
+    @Test
+    public void renderAtOffset() {
+        char[] out = "xx--------".toCharArray();
+        assertEquals(7, OtpCode.Render(42, 6, true, out, 2));
+        assertEquals("xx000 042-", new String(out));
+    }
+
+    @Test
+    public void parseIsTheInverseOfRender() {
+        for (int digits = OtpGenerator.MIN_DIGITS; digits <= OtpGenerator.MAX_DIGITS; digits++) {
+            for (int code : new int[] {0, 7, 123456, 999999}) {
+                assertEquals(code, OtpCode.Parse(render(code, digits, true), digits));
+                assertEquals(code, OtpCode.Parse(render(code, digits, false), digits));
+            }
+        }
+    }
+
+    @Test
+    public void parseRejectsMalformed() {
+        assertEquals(-1, OtpCode.Parse(null, 6));
+        assertEquals(-1, OtpCode.Parse("", 6));
+        assertEquals(-1, OtpCode.Parse("12345", 6));
+        assertEquals(-1, OtpCode.Parse("1234567", 6));
+        assertEquals(-1, OtpCode.Parse("12a456", 6));
+        assertEquals(-1, OtpCode.Parse("123-456", 6));
+        assertEquals(123456, OtpCode.Parse(" 123 456 ", 6));
+    }
+
+    @Test
+    public void setReportsChanges() {
+        OtpCode code = new OtpCode();
+        assertTrue(code.set(123456, 6, true));
+        assertEquals("123 456", code.toString());
+        assertFalse(code.set(123456, 6, true));
+        assertTrue(code.set(123456, 6, false));
+        assertEquals("123456", code.toString());
+        code.clear();
+        assertEquals(0, code.length());
+        assertTrue(code.set(123456, 6, false));
+    }
+}
@@ -0,0 +1,120 @@
+package com.github.onetimepass.core.otp;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * The RFC 4226 (HOTP) and RFC 6238 (TOTP) test vectors.
+ */
+public class OtpGeneratorTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] SEED20 = "12345678901234567890".getBytes(ASCII);
+    private static final byte[] SEED32 = "12345678901234567890123456789012".getBytes(ASCII);
+    private static final byte[] SEED64 = "1234567890123456789012345678901234567890123456789012345678901234".getBytes(ASCII);
+
+    // RFC 4226 appendix D, counters 0 to 9
+    private static final int[] HOTP = {
+            755224, 287082, 359152, 969429, 338314, 254676, 287922, 162583, 399871, 520489
+    };
+
+    // RFC 6238 appendix B: time, SHA1, SHA256, SHA512
+    private static final long[][] TOTP = {
+            {59L, 94287082, 46119246, 90693936},
+            {1111111109L, 7081804, 68084774, 25091201},
+            {1111111111L, 14050471, 67062674, 99943326},
+            {1234567890L, 89005924, 91819424, 93441116},
+            {2000000000L, 69279037, 90698825, 38618901},
+            {20000000000L, 65353130, 77737706, 47863826},
+    };
+
+    @Test
+    public void hotpVectors() throws Exception {
+        OtpGenerator generator = OtpGenerator.Create(SEED20);
+        for (int counter = 0; counter < HOTP.length; counter++) {
+            assertEquals("counter "+counter, HOTP[counter], generator.generate(counter));
+        }
+    }
+
+    @Test
+    public void totpVectors() throws Exception {
+        OtpGenerator sha1 = OtpGenerator.Create(SEED20, OtpAlgorithm.SHA1, 8, 30);
+        OtpGenerator sha256 = OtpGenerator.Create(SEED32, OtpAlgorithm.SHA256, 8, 30);
+        OtpGenerator sha512 = OtpGenerator.Create(SEED64, OtpAlgorithm.SHA512, 8, 30);
+        for (long[] vector : TOTP) {
+            long millis = vector[0] * 1000;
+            assertEquals("SHA1 at "+vector[0], vector[1], sha1.generateAt(millis));
+            assertEquals("SHA256 at "+vector[0], vector[2], sha256.generateAt(millis));
+            assertEquals("SHA512 at "+vector[0], vector[3], sha512.generateAt(millis));
+        }
+    }
+
+    @Test
+    public void sharedCounterEncodingMatches() throws Exception {
+        OtpGenerator generator = OtpGenerator.Create(SEED20);
+        byte[] counter = new byte[8];
+        for (int i = 0; i < HOTP.length; i++) {
+            OtpGenerator.EncodeCounter(i, counter);
+            assertEquals(HOTP[i], generator.generate(counter));
+        }
+    }
+
+    @Test
+    public void verifyFindsTheMatchingStep() throws Exception {
+        OtpGenerator generator = OtpGenerator.Create(SEED20, OtpAlgorithm.SHA1, 8, 30);
+        long millis = 1111111109L * 1000;
+        long step = generator.getStep(millis);
+        assertEquals(step, generator.verifyAt(7081804, millis, 1));
+        assertEquals(step, generator.verifyAt(7081804, millis + 30000, 1));
+        assertEquals(OtpGenerator.NO_MATCH, generator.verifyAt(7081804, millis + 60000, 1));
+        assertEquals(OtpGenerator.NO_MATCH, generator.verifyAt(7081805, millis, 1));
+        assertEquals(3, OtpGenerator.Create(SEED20).verify(HOTP[3], 0, HOTP.length));
+    }
+
+    @Test
+    public void parameterBounds() {
+        assertFalse(OtpGenerator.IsValidDigits(OtpGenerator.MIN_DIGITS - 1));
+        assertTrue(OtpGenerator.IsValidDigits(OtpGenerator.MIN_DIGITS));
+        assertTrue(OtpGenerator.IsValidDigits(OtpGenerator.MAX_DIGITS));
+        assertFalse(OtpGenerator.IsValidDigits(OtpGenerator.MAX_DIGITS + 1));
+        assertFalse(OtpGenerator.IsValidPeriod(0));
+        assertFalse(OtpGenerator.IsValidPeriod(-1));
+        assertTrue(OtpGenerator.IsValidPeriod(1));
+    }
+
+    @Test
+    public void createRejectsUnsupportedParameters() {
+        int[][] rejected = {{OtpGenerator.MAX_DIGITS + 1, 30}, {OtpGenerator.MIN_DIGITS - 1, 30}, {6, 0}};
+        for (int[] parameters : rejected) {
+            try {
+                OtpGenerator.Create(SEED20, OtpAlgorithm.SHA1, parameters[0], parameters[1]);
+                fail("accepted digits="+parameters[0]+" period="+parameters[1]);
+            } catch (java.security.GeneralSecurityException expected) {
+                // rejected
+            }
+        }
+    }
+
+    @Test(expected = java.security.GeneralSecurityException.class)
+    public void createRejectsEmptyKey() throws Exception {
+        OtpGenerator.Create(new byte[0]);
+    }
+}
@@ -0,0 +1,66 @@
+package com.github.onetimepass.core.otp;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * The midstate HMAC-SHA1 against the JCA HmacSHA1, across key lengths on
+ * both sides of the block size (longer keys are hashed first).
+ */
+public class Sha1HmacTest {
+    @Test
+    public void matchesJcaAcrossKeyLengths() throws Exception {
+        Random random = new Random(4226);
+        Mac jca = Mac.getInstance("HmacSHA1");
+        byte[] counter = new byte[8];
+        byte[] ours = new byte[20];
+        for (int length = 1; length <= 200; length++) {
+            byte[] key = new byte[length];
+            random.nextBytes(key);
+            Sha1Hmac hmac = new Sha1Hmac(key);
+            jca.init(new SecretKeySpec(key, "HmacSHA1"));
+            for (int i = 0; i < 4; i++) {
+                OtpGenerator.EncodeCounter(random.nextLong(), counter);
+                hmac.mac(counter, ours);
+                assertArrayEquals("key length "+length, jca.doFinal(counter), ours);
+            }
+        }
+    }
+
+    @Test
+    public void reusesStateBetweenCounters() throws Exception {
+        byte[] key = "12345678901234567890".getBytes("US-ASCII");
+        Sha1Hmac hmac = new Sha1Hmac(key);
+        Mac jca = Mac.getInstance("HmacSHA1");
+        jca.init(new SecretKeySpec(key, "HmacSHA1"));
+        byte[] counter = new byte[8];
+        byte[] ours = new byte[hmac.length()];
+        for (long c = 0; c < 1000; c++) {
+            OtpGenerator.EncodeCounter(c, counter);
+            hmac.mac(counter, ours);
+            assertArrayEquals("counter "+c, jca.doFinal(counter), ours);
+        }
+    }
+}
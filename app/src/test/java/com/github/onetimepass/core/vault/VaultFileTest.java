@@ -0,0 +1,264 @@
+package com.github.onetimepass.core.vault;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+import android.net.Uri;
+import android.util.Base64;
+
+import com.github.onetimepass.core.account.AccountEntry;
+import com.tozny.crypto.android.AesCbcWithIntegrity;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Vaults survive an encode and decode, older formats are read and
+ * rewritten, and damage costs only the accounts it touches.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class VaultFileTest {
+    private static final String SALT = "c2FsdHNhbHRzYWx0c2FsdA==";
+
+    private static AesCbcWithIntegrity.SecretKeys sKeys;
+
+    @BeforeClass
+    public static void deriveKeys() throws GeneralSecurityException {
+        sKeys = KdfParams.LEGACY.Derive("passphrase", SALT);
+    }
+
+    private static VaultFile.KeySource keys(final AesCbcWithIntegrity.SecretKeys keys) {
+        return new VaultFile.KeySource() {
+            @Override
+            public AesCbcWithIntegrity.SecretKeys getKeys(KdfParams kdf) {
+                return keys;
+            }
+        };
+    }
+
+    private static List<AccountEntry> accounts() {
+        List<AccountEntry> accounts = new ArrayList<AccountEntry>();
+        accounts.add(AccountEntry.Create("alice@example.com", "Example", "JBSWY3DPEHPK3PXP"));
+        accounts.add(AccountEntry.Create(Uri.parse("otpauth://hotp/bob?secret=GEZDGNBVGY3TQOJQ&counter=5&digits=8")));
+        accounts.add(AccountEntry.Create("carol", "", "MFRGGZDFMZTWQ2LK"));
+        return accounts;
+    }
+
+    /**
+     * An entry whose secret fails to decrypt on first use.
+     */
+    static AccountEntry unreadable(AccountEntry like) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        like.writeIndexTo(new DataOutputStream(bytes));
+        AccountEntry.Secret secret = new AccountEntry.Secret(new AccountEntry.Secret.Source() {
+            @Override
+            public String read() throws Exception {
+                throw new GeneralSecurityException("mac");
+            }
+        });
+        return AccountEntry.ReadIndexFrom(0, new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), secret);
+    }
+
+    private static VaultFile.Contents decode(byte[] bytes) throws Exception {
+        return new VaultFile().Decode(new ByteArrayInputStream(bytes), keys(sKeys), null);
+    }
+
+    /**
+     * The offset of a record in a binary vault: 0 is the header, then the
+     * index records and the secret records.
+     */
+    private static int recordOffset(byte[] bytes, int record) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        in.position(VaultFile.MAGIC.length + 1 + 1 + 4);
+        for (int i = 0; i < record; i++) {
+            in.position(in.position() + 4 + in.getInt(in.position()));
+            if (i == 0)
+                in.position(in.position() + 4); // the index length
+        }
+        return in.position();
+    }
+
+    @Test
+    public void encodeDecodeRoundTrips() throws Exception {
+        List<AccountEntry> accounts = accounts();
+        VaultFile.Encoded encoded = new VaultFile().Encode(accounts, sKeys, KdfParams.LEGACY);
+        VaultFile.Contents contents = decode(encoded.bytes);
+        assertEquals(accounts, contents.accounts);
+        assertEquals(8, contents.accounts.get(1).getDigits());
+        assertEquals(5, contents.accounts.get(1).getCounter());
+        assertEquals(0, contents.damaged);
+        assertTrue(contents.current);
+        assertEquals(KdfParams.LEGACY, contents.kdf);
+        assertEquals(encoded.baseId, contents.baseId);
+    }
+
+    @Test
+    public void reencodingReusesRecords() throws Exception {
+        VaultFile vault = new VaultFile();
+        VaultFile.Contents contents = vault.Decode(new ByteArrayInputStream(
+                new VaultFile().Encode(accounts(), sKeys, KdfParams.LEGACY).bytes), keys(sKeys), null);
+        VaultFile.Encoded first = vault.Encode(contents.accounts, sKeys, contents.kdf);
+        VaultFile.Encoded second = vault.Encode(contents.accounts, sKeys, contents.kdf);
+        assertArrayEquals(first.digest, second.digest);
+        assertFalse(Arrays.equals(first.bytes, second.bytes));
+        assertEquals(contents.accounts, decode(second.bytes).accounts);
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void wrongKeysAreRejected() throws Exception {
+        byte[] bytes = new VaultFile().Encode(accounts(), sKeys, KdfParams.LEGACY).bytes;
+        new VaultFile().Decode(new ByteArrayInputStream(bytes),
+                keys(KdfParams.LEGACY.Derive("wrong passphrase", SALT)), null);
+    }
+
+    @Test
+    public void textVaultIsMigrated() throws Exception {
+        List<AccountEntry> accounts = accounts();
+        StringBuilder records = new StringBuilder();
+        JSONArray macs = new JSONArray();
+        for (AccountEntry entry : accounts) {
+            AesCbcWithIntegrity.CipherTextIvMac civ = AesCbcWithIntegrity.encrypt(entry.toString(), sKeys, "utf-8");
+            macs.put(Base64.encodeToString(civ.getMac(), Base64.NO_WRAP));
+            records.append(civ.toString()).append('\n');
+        }
+        String header = new JSONObject().put("records", macs).toString();
+        String text = VaultFile.TEXT_MAGIC + "\n"
+                + AesCbcWithIntegrity.encrypt(header, sKeys, "utf-8").toString() + "\n"
+                + records;
+
+        VaultFile vault = new VaultFile();
+        VaultFile.Contents contents = vault.Decode(
+                new ByteArrayInputStream(text.getBytes(Charset.forName("US-ASCII"))), keys(sKeys), null);
+        assertFalse(contents.current);
+        assertEquals(0, contents.damaged);
+        assertEquals(KdfParams.LEGACY, contents.kdf);
+        assertEquals(accounts, contents.accounts);
+
+        VaultFile.Contents migrated = decode(vault.Encode(contents.accounts, contents.keys, contents.kdf).bytes);
+        assertTrue(migrated.current);
+        assertEquals(0, migrated.damaged);
+        assertEquals(accounts, migrated.accounts);
+    }
+
+    @Test
+    public void truncatedVaultCountsMissingAccounts() throws Exception {
+        byte[] bytes = new VaultFile().Encode(accounts(), sKeys, KdfParams.LEGACY).bytes;
+        // cut into the last account's secret record
+        byte[] truncated = Arrays.copyOf(bytes, recordOffset(bytes, 6) + 10);
+        VaultFile.Contents contents = decode(truncated);
+        assertEquals(accounts().subList(0, 2), contents.accounts);
+        assertEquals(1, contents.damaged);
+    }
+
+    @Test
+    public void damagedRecordCostsOnlyItsAccount() throws Exception {
+        byte[] bytes = new VaultFile().Encode(accounts(), sKeys, KdfParams.LEGACY).bytes;
+        // the last byte of the second account's index record, in its ciphertext
+        bytes[recordOffset(bytes, 3) - 1] ^= 1;
+        VaultFile.Contents contents = decode(bytes);
+        List<AccountEntry> expected = accounts();
+        expected.remove(1);
+        assertEquals(expected, contents.accounts);
+        assertEquals(1, contents.damaged);
+        assertTrue(contents.current);
+    }
+
+    @Test
+    public void secretsAreLeftEncrypted() throws Exception {
+        VaultFile.Contents contents = decode(new VaultFile().Encode(accounts(), sKeys, KdfParams.LEGACY).bytes);
+        for (AccountEntry entry : contents.accounts) {
+            assertFalse(entry.getSecretHolder().isRead());
+        }
+        // equality and lookups go by the index fields
+        assertEquals(accounts(), contents.accounts);
+        assertEquals(1, contents.accounts.indexOf(accounts().get(1)));
+        for (AccountEntry entry : contents.accounts) {
+            assertFalse(entry.getSecretHolder().isRead());
+        }
+        assertEquals("GEZDGNBVGY3TQOJQ", contents.accounts.get(1).getSecret());
+    }
+
+    @Test
+    public void damagedSecretRecordFailsOnFirstUse() throws Exception {
+        byte[] bytes = new VaultFile().Encode(accounts(), sKeys, KdfParams.LEGACY).bytes;
+        // the last byte of the second account's secret record
+        bytes[recordOffset(bytes, 6) - 1] ^= 1;
+        VaultFile.Contents contents = decode(bytes);
+        assertEquals(accounts(), contents.accounts);
+        assertEquals(0, contents.damaged);
+        assertEquals("JBSWY3DPEHPK3PXP", contents.accounts.get(0).getSecret());
+        assertEquals("", contents.accounts.get(1).getSecret());
+        try {
+            contents.accounts.get(1).getSecretHolder().getChecked();
+            fail("read a damaged secret");
+        } catch (IOException expected) {
+        }
+        assertEquals("MFRGGZDFMZTWQ2LK", contents.accounts.get(2).getSecret());
+    }
+
+    @Test
+    public void misplacedSecretRecordCostsOnlyItsAccount() throws Exception {
+        byte[] bytes = new VaultFile().Encode(accounts(), sKeys, KdfParams.LEGACY).bytes;
+        // a MAC byte of the second account's secret record, no longer the one the header lists
+        bytes[recordOffset(bytes, 5) + 4 + 16] ^= 1;
+        VaultFile.Contents contents = decode(bytes);
+        List<AccountEntry> expected = accounts();
+        expected.remove(1);
+        assertEquals(expected, contents.accounts);
+        assertEquals(1, contents.damaged);
+    }
+
+    @Test
+    public void unreadableSecretIsNeverWrittenEmpty() throws Exception {
+        AccountEntry entry = unreadable(accounts().get(0));
+        assertEquals("", entry.getSecret());
+        try {
+            new VaultFile().Encode(Arrays.asList(entry), sKeys, KdfParams.LEGACY);
+            fail("encoded an unreadable secret");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void unreadSecretRecordIsCopiedThrough() throws Exception {
+        VaultFile vault = new VaultFile();
+        VaultFile.Contents contents = vault.Decode(new ByteArrayInputStream(
+                new VaultFile().Encode(accounts(), sKeys, KdfParams.LEGACY).bytes), keys(sKeys), null);
+        // a counter change re-encrypts the index record only
+        ArrayList<AccountEntry> accounts = new ArrayList<AccountEntry>(contents.accounts);
+        accounts.set(1, accounts.get(1).WithCounter(6));
+        VaultFile.Contents saved = decode(vault.Encode(accounts, sKeys, contents.kdf).bytes);
+        assertEquals(6, saved.accounts.get(1).getCounter());
+        assertEquals(accounts(), saved.accounts);
+    }
+}
@@ -0,0 +1,203 @@
+package com.github.onetimepass.core.vault;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+import com.github.onetimepass.core.account.AccountEntry;
+import com.tozny.crypto.android.AesCbcWithIntegrity;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Every change appended to the journal is replayed over the base it was
+ * made against, and only that base.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class VaultJournalTest {
+    private static final String BASE = "base-1";
+
+    private static AesCbcWithIntegrity.SecretKeys sKeys;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mPath;
+    private List<AccountEntry> mBase;
+    private VaultJournal mJournal;
+
+    @BeforeClass
+    public static void deriveKeys() throws GeneralSecurityException {
+        sKeys = KdfParams.LEGACY.Derive("passphrase", "c2FsdHNhbHRzYWx0c2FsdA==");
+    }
+
+    @Before
+    public void setUp() {
+        mPath = new File(mFolder.getRoot(), "secrets.dat.journal");
+        mBase = Arrays.asList(
+                AccountEntry.Create("alice", "Example", "JBSWY3DPEHPK3PXP"),
+                AccountEntry.Create("bob", "Example", "GEZDGNBVGY3TQOJQ"),
+                AccountEntry.Create("carol", "", "MFRGGZDFMZTWQ2LK"));
+        mJournal = new VaultJournal(mPath);
+        assertEquals(mBase, mJournal.Replay(BASE, mBase, sKeys));
+    }
+
+    /**
+     * Append the list and check that opening the vault again gives it back.
+     */
+    private void appendAndReplay(List<AccountEntry> accounts) {
+        assertTrue(mJournal.Append(accounts, sKeys));
+        assertEquals(accounts, mJournal.getState());
+        assertEquals(accounts, new VaultJournal(mPath).Replay(BASE, mBase, sKeys));
+    }
+
+    @Test
+    public void unchangedListAppendsNothing() {
+        assertTrue(mJournal.Append(new ArrayList<AccountEntry>(mBase), sKeys));
+        assertEquals(0, mJournal.getPending());
+        assertFalse(mPath.exists());
+    }
+
+    @Test
+    public void addIsReplayed() {
+        List<AccountEntry> accounts = new ArrayList<AccountEntry>(mBase);
+        accounts.add(AccountEntry.Create("dave", "Other", "KRUGS4ZANFZSAYJA"));
+        appendAndReplay(accounts);
+        accounts.add(1, AccountEntry.Create("erin", "Other", "ORSXG5BAMJQXGZJA"));
+        appendAndReplay(accounts);
+        assertEquals(3, mJournal.getPending()); // add, add, reorder
+    }
+
+    @Test
+    public void removeIsReplayed() {
+        List<AccountEntry> accounts = new ArrayList<AccountEntry>(mBase);
+        accounts.remove(1);
+        appendAndReplay(accounts);
+        accounts.remove(0);
+        accounts.remove(0);
+        appendAndReplay(accounts);
+        assertTrue(new VaultJournal(mPath).Replay(BASE, mBase, sKeys).isEmpty());
+    }
+
+    @Test
+    public void replaceIsReplayed() {
+        List<AccountEntry> accounts = new ArrayList<AccountEntry>(mBase);
+        accounts.set(1, accounts.get(1).Edit("robert", "Example", "GEZDGNBVGY3TQOJQ"));
+        accounts.set(2, accounts.get(2).WithCounter(7));
+        appendAndReplay(accounts);
+        assertEquals(2, mJournal.getPending());
+        assertEquals("robert", new VaultJournal(mPath).Replay(BASE, mBase, sKeys).get(1).getLabel());
+    }
+
+    @Test
+    public void reorderIsReplayed() {
+        List<AccountEntry> accounts = new ArrayList<AccountEntry>(mBase);
+        Collections.reverse(accounts);
+        appendAndReplay(accounts);
+        assertEquals(1, mJournal.getPending());
+        Collections.swap(accounts, 0, 1);
+        appendAndReplay(accounts);
+    }
+
+    @Test
+    public void mixedChangesAreReplayed() {
+        List<AccountEntry> accounts = new ArrayList<AccountEntry>(mBase);
+        accounts.remove(0);
+        accounts.set(0, accounts.get(0).Edit("bob", "Renamed", "GEZDGNBVGY3TQOJQ"));
+        accounts.add(0, AccountEntry.Create("dave", "Other", "KRUGS4ZANFZSAYJA"));
+        Collections.swap(accounts, 1, 2);
+        appendAndReplay(accounts);
+    }
+
+    @Test
+    public void journalOfAnotherBaseIsIgnored() {
+        List<AccountEntry> accounts = new ArrayList<AccountEntry>(mBase);
+        accounts.remove(0);
+        appendAndReplay(accounts);
+        assertTrue(mPath.exists());
+
+        VaultJournal journal = new VaultJournal(mPath);
+        assertEquals(mBase, journal.Replay("base-2", mBase, sKeys));
+        assertEquals(0, journal.getPending());
+        assertEquals("base-2", journal.getBaseId());
+        assertFalse(mPath.exists());
+    }
+
+    @Test
+    public void tornRecordIsDropped() throws Exception {
+        List<AccountEntry> accounts = new ArrayList<AccountEntry>(mBase);
+        accounts.remove(2);
+        appendAndReplay(accounts);
+        FileOutputStream output = new FileOutputStream(mPath, true);
+        try {
+            output.write("torn record".getBytes("utf-8"));
+        } finally {
+            output.close();
+        }
+
+        VaultJournal journal = new VaultJournal(mPath);
+        assertEquals(accounts, journal.Replay(BASE, mBase, sKeys));
+        assertEquals(1, journal.getPending());
+        // the journal was rewritten without the torn record and can go on
+        accounts.remove(0);
+        assertTrue(journal.Append(accounts, sKeys));
+        assertEquals(accounts, new VaultJournal(mPath).Replay(BASE, mBase, sKeys));
+    }
+
+    @Test
+    public void tornLengthIsDropped() throws Exception {
+        List<AccountEntry> accounts = new ArrayList<AccountEntry>(mBase);
+        accounts.set(0, accounts.get(0).WithCounter(3));
+        appendAndReplay(accounts);
+        FileOutputStream output = new FileOutputStream(mPath, true);
+        try {
+            output.write(new byte[] {0, 0}); // half a record length
+        } finally {
+            output.close();
+        }
+        long torn = mPath.length();
+
+        VaultJournal journal = new VaultJournal(mPath);
+        assertEquals(accounts, journal.Replay(BASE, mBase, sKeys));
+        assertEquals(torn - 2, mPath.length());
+        accounts.remove(1);
+        assertTrue(journal.Append(accounts, sKeys));
+        assertEquals(accounts, new VaultJournal(mPath).Replay(BASE, mBase, sKeys));
+    }
+
+    @Test
+    public void unreadableSecretIsNotJournaled() throws Exception {
+        List<AccountEntry> accounts = new ArrayList<AccountEntry>(mBase);
+        accounts.add(VaultFileTest.unreadable(mBase.get(0)));
+        assertFalse(mJournal.Append(accounts, sKeys));
+        assertNull(mJournal.getBaseId()); // a full save is due
+        assertEquals(mBase, new VaultJournal(mPath).Replay(BASE, mBase, sKeys));
+    }
+}
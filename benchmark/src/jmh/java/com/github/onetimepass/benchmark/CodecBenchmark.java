@@ -0,0 +1,105 @@
+package com.github.onetimepass.benchmark;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+import com.github.onetimepass.core.account.AccountEntry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The AccountEntry codecs over a whole vault: the JSON one of imports and
+ * exports, and the binary one of the vault records.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CodecBenchmark {
+    @Param({"10", "100", "1000", "10000", "100000"})
+    public int size;
+
+    private List<AccountEntry> mAccounts;
+    private String[] mJson;
+    private byte[] mBinary;
+    private ByteArrayOutputStream mBuffer;
+
+    @Setup
+    public void setup() throws IOException {
+        mAccounts = Fixtures.MakeAccounts(size);
+        mJson = new String[size];
+        mBuffer = new ByteArrayOutputStream(size * 96);
+        DataOutputStream out = new DataOutputStream(mBuffer);
+        for (int i = 0; i < size; i++) {
+            mJson[i] = mAccounts.get(i).toString();
+            mAccounts.get(i).writeTo(out);
+        }
+        out.flush();
+        mBinary = mBuffer.toByteArray();
+    }
+
+    @Benchmark
+    public void parseJSON(Blackhole bh) {
+        for (int i = 0; i < mJson.length; i++) {
+            bh.consume(AccountEntry.ParseJSON(i, mJson[i]));
+        }
+    }
+
+    /**
+     * Parse and serialize again. toString() is memoized per entry, so it is
+     * timed on freshly parsed entries.
+     */
+    @Benchmark
+    public void roundTripJSON(Blackhole bh) {
+        for (int i = 0; i < mJson.length; i++) {
+            bh.consume(AccountEntry.ParseJSON(i, mJson[i]).toString());
+        }
+    }
+
+    @Benchmark
+    public int writeBinary() throws IOException {
+        mBuffer.reset();
+        DataOutputStream out = new DataOutputStream(mBuffer);
+        for (int i = 0; i < mAccounts.size(); i++) {
+            mAccounts.get(i).writeTo(out);
+        }
+        out.flush();
+        return mBuffer.size();
+    }
+
+    @Benchmark
+    public void readBinary(Blackhole bh) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(mBinary));
+        for (int i = 0; i < size; i++) {
+            bh.consume(AccountEntry.ReadFrom(i, in));
+        }
+    }
+}
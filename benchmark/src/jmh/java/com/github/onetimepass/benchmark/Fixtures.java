@@ -0,0 +1,94 @@
+package com.github.onetimepass.benchmark;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+import com.github.onetimepass.core.account.AccountEntry;
+import com.github.onetimepass.core.vault.KdfParams;
+import com.tozny.crypto.android.AesCbcWithIntegrity;
+
+import org.apache.commons.codec.binary.Base32;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Deterministic vault contents for the benchmarks, made of real
+ * AccountEntry instances.
+ */
+final class Fixtures {
+    private static final String[] ISSUERS = {
+            "GitHub", "Google", "Amazon Web Services", "Dropbox", "GitLab",
+            "Microsoft", "Bitbucket", "DigitalOcean", "Fastmail", "Cloudflare"
+    };
+
+    /**
+     * The passphrase of the benchmark vaults.
+     */
+    static final String PASSPHRASE = "benchmark passphrase";
+    /**
+     * The salt of the benchmark vaults, base64 encoded as in the vault.
+     */
+    static final String SALT = "YmVuY2htYXJrIHNhbHQhIQ==";
+
+    static {
+        // the tozny PRNG fix only applies to Android 4.1 to 4.3 and reads
+        // Build.VERSION, which needs the Android runtime; mark it applied
+        try {
+            Field fixed = AesCbcWithIntegrity.class.getDeclaredField("prngFixed");
+            fixed.setAccessible(true);
+            ((AtomicBoolean) fixed.get(null)).set(true);
+        } catch (Exception e) {
+            throw new IllegalStateException("cannot skip the tozny PRNG fix", e);
+        }
+    }
+
+    private Fixtures() {}
+
+    /**
+     * Make a vault of the given size. The same size always gives the same
+     * accounts.
+     *
+     * @param size the size
+     * @return the accounts
+     */
+    static ArrayList<AccountEntry> MakeAccounts(int size) {
+        Random random = new Random(size);
+        Base32 base32 = new Base32();
+        byte[] key = new byte[20];
+        ArrayList<AccountEntry> accounts = new ArrayList<AccountEntry>(size);
+        for (int i = 0; i < size; i++) {
+            random.nextBytes(key);
+            accounts.add(AccountEntry.Create(
+                    "user" + i + "@example.com",
+                    ISSUERS[i % ISSUERS.length],
+                    base32.encodeAsString(key)));
+        }
+        return accounts;
+    }
+
+    /**
+     * Derive the keys of the benchmark vaults, as an unlock does.
+     *
+     * @return the keys
+     * @throws Exception on key failures
+     */
+    static AesCbcWithIntegrity.SecretKeys MakeKeys() throws Exception {
+        return KdfParams.LEGACY.Derive(PASSPHRASE, SALT);
+    }
+}
@@ -0,0 +1,56 @@
+package com.github.onetimepass.benchmark;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+import com.github.onetimepass.core.vault.KdfParams;
+import com.tozny.crypto.android.AesCbcWithIntegrity;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The passphrase key derivation done on every unlock, size independent.
+ * The legacy iteration count goes through AesCbcWithIntegrity as for old
+ * vaults, higher (calibrated) counts through KdfParams' own PBKDF2.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class KeyDerivationBenchmark {
+    @Param({"10000", "100000"})
+    public int iterations;
+
+    private KdfParams mKdf;
+
+    @Setup
+    public void setup() {
+        mKdf = new KdfParams(KdfParams.PBKDF2_SHA1, iterations);
+    }
+
+    @Benchmark
+    public AesCbcWithIntegrity.SecretKeys deriveKeys() throws Exception {
+        return mKdf.Derive(Fixtures.PASSPHRASE, Fixtures.SALT);
+    }
+}
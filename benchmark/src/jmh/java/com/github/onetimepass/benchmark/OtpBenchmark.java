@@ -0,0 +1,88 @@
+package com.github.onetimepass.benchmark;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+import com.github.onetimepass.core.account.AccountEntry;
+import com.github.onetimepass.core.otp.OtpBatch;
+import com.github.onetimepass.core.otp.OtpGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Code generation: what the code cache does, with each entry's prepared
+ * generator.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class OtpBenchmark {
+    private static final long NOW = 1600000000000L;
+
+    @Param({"10", "100", "1000", "10000", "100000"})
+    public int size;
+
+    private List<AccountEntry> mAccounts;
+    private int[] mCodes;
+    private int mCode;
+    private long mStep;
+
+    @Setup
+    public void setup() throws Exception {
+        mAccounts = Fixtures.MakeAccounts(size);
+        mCodes = new int[size];
+        mStep = NOW / (OtpGenerator.DEFAULT_PERIOD * 1000L);
+        mCode = mAccounts.get(0).getGenerator().generate(mStep + 1);
+    }
+
+    /**
+     * One code per account, one account at a time.
+     */
+    @Benchmark
+    public void generateEach(Blackhole bh) {
+        for (int i = 0; i < mAccounts.size(); i++) {
+            bh.consume(mAccounts.get(i).getGenerator().generateAt(NOW));
+        }
+    }
+
+    /**
+     * Every code for one step through OtpBatch.
+     */
+    @Benchmark
+    public int[] generateBatch() {
+        OtpBatch.Generate(mAccounts, mStep, mCodes);
+        return mCodes;
+    }
+
+    /**
+     * Verify one code against a one step window, size independent.
+     */
+    @Benchmark
+    public long verifyWindow() {
+        return mAccounts.get(0).getGenerator().verifyAt(mCode, NOW, 1);
+    }
+}
@@ -0,0 +1,61 @@
+package com.github.onetimepass.benchmark;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+import com.github.onetimepass.core.account.AccountEntry;
+import com.github.onetimepass.core.account.AccountList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AccountList.SearchFilter() over the whole vault. The list is not attached
+ * to a RecyclerView, so the data set change it signals reaches no views.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SearchBenchmark {
+    @Param({"10", "100", "1000", "10000", "100000"})
+    public int size;
+
+    @Param({"git", "user42", "nomatch"})
+    public String text;
+
+    private AccountList mList;
+
+    @Setup
+    public void setup() {
+        ArrayList<AccountEntry> accounts = Fixtures.MakeAccounts(size);
+        mList = new AccountList(accounts, null, null);
+    }
+
+    @Benchmark
+    public int searchFilter() {
+        mList.SearchFilter(text);
+        return mList.getItemCount();
+    }
+}
@@ -0,0 +1,105 @@
+package com.github.onetimepass.benchmark;
+/*
+ This software is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; specifically
+ version 2.1 of the License and not any other version.
+
+ This software is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+
+
+import com.github.onetimepass.core.account.AccountEntry;
+import com.github.onetimepass.core.vault.KdfParams;
+import com.github.onetimepass.core.vault.VaultFile;
+import com.tozny.crypto.android.AesCbcWithIntegrity;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The vault codec Storage opens and saves with, with the keys derived once
+ * as the key cache keeps them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class VaultBenchmark {
+    @Param({"10", "100", "1000", "10000", "100000"})
+    public int size;
+
+    private List<AccountEntry> mAccounts;
+    private AesCbcWithIntegrity.SecretKeys mKeys;
+    private VaultFile.KeySource mKeySource;
+    private VaultFile mSaved;
+    private byte[] mVault;
+
+    @Setup
+    public void setup() throws Exception {
+        mAccounts = Fixtures.MakeAccounts(size);
+        mKeys = Fixtures.MakeKeys();
+        mKeySource = new VaultFile.KeySource() {
+            @Override
+            public AesCbcWithIntegrity.SecretKeys getKeys(KdfParams kdf) {
+                return mKeys;
+            }
+        };
+        mSaved = new VaultFile();
+        mVault = mSaved.Encode(mAccounts, mKeys, KdfParams.LEGACY).bytes;
+    }
+
+    /**
+     * A first save: every record is encrypted.
+     */
+    @Benchmark
+    public byte[] encode() throws Exception {
+        return new VaultFile().Encode(mAccounts, mKeys, KdfParams.LEGACY).bytes;
+    }
+
+    /**
+     * A save with nothing changed: every record is reused.
+     */
+    @Benchmark
+    public byte[] encodeUnchanged() throws Exception {
+        return mSaved.Encode(mAccounts, mKeys, KdfParams.LEGACY).bytes;
+    }
+
+    /**
+     * An open, up to the account list: the secrets stay encrypted.
+     */
+    @Benchmark
+    public ArrayList<AccountEntry> decode() throws Exception {
+        return new VaultFile().Decode(new ByteArrayInputStream(mVault), mKeySource, null).accounts;
+    }
+
+    /**
+     * An open followed by reading every secret, as the code cache does.
+     */
+    @Benchmark
+    public int decodeSecrets() throws Exception {
+        ArrayList<AccountEntry> accounts = new VaultFile().Decode(new ByteArrayInputStream(mVault), mKeySource, null).accounts;
+        int length = 0;
+        for (int i = 0; i < accounts.size(); i++) {
+            length += accounts.get(i).getSecret().length();
+        }
+        return length;
+    }
+}